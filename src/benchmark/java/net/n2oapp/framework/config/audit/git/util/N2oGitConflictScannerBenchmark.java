@@ -0,0 +1,56 @@
+package net.n2oapp.framework.config.audit.git.util;
+
+import net.n2oapp.framework.config.register.audit.util.N2oConfigConflictParser;
+import org.openjdk.jmh.annotations.*;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+import static net.n2oapp.framework.config.audit.git.util.N2oGitConstant.DEFAULT_FILE_ENCODING;
+
+/**
+ * <p>Подсчет конфликтов потоковым разбором({@link N2oGitConflictScanner#countConflict})
+ * и разбором строки({@link N2oConfigConflictParser#countConflict}) на файлах от 1 Кб до 5 Мб.</p>
+ * <p>Разбор строки включает декодирование содержимого, так как оно хранится в git в виде байт.
+ * Каждая сотая строка файла - конфликт.</p>
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5)
+@Measurement(iterations = 5)
+@Fork(1)
+public class N2oGitConflictScannerBenchmark {
+
+    @Param({"1024", "65536", "1048576", "5242880"})
+    private int size;
+
+    private byte[] content;
+
+    @Setup(Level.Trial)
+    public void generate() throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream(size + 256);
+        int line = 0;
+        while (out.size() < size) {
+            if (line % 100 == 50)
+                out.write("<<<<<<< HEAD\n    <name>test2</name>\n=======\n    <name>test3</name>\n>>>>>>> refs/heads/system\n"
+                        .getBytes(DEFAULT_FILE_ENCODING));
+            else
+                out.write(("    <wgt:column column-field-id=\"field" + line + "\"/>\n").getBytes(DEFAULT_FILE_ENCODING));
+            line++;
+        }
+        content = out.toByteArray();
+    }
+
+    @Benchmark
+    public int parser() throws IOException {
+        return N2oConfigConflictParser.countConflict(new String(content, DEFAULT_FILE_ENCODING));
+    }
+
+    @Benchmark
+    public int scanner() throws IOException {
+        return N2oGitConflictScanner.countConflict(new ByteArrayInputStream(content));
+    }
+}
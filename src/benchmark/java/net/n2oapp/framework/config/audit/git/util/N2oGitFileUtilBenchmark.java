@@ -0,0 +1,72 @@
+package net.n2oapp.framework.config.audit.git.util;
+
+import org.openjdk.jmh.annotations.*;
+import org.springframework.context.support.ClassPathXmlApplicationContext;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+
+import static net.n2oapp.framework.config.audit.git.util.N2oGitConstant.DEFAULT_FILE_ENCODING;
+
+/**
+ * <p>Масштабирование очистки хранилища конфигураций({@link N2oGitFileUtil#deleteAllFiles}) по количеству файлов.</p>
+ * <p>При линейной сложности время на файл не растет с количеством файлов.
+ * Каждый десятый файл исключается из удаления, файлы разложены по 50 каталогам.</p>
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+@Fork(1)
+public class N2oGitFileUtilBenchmark {
+    private static final String IGNORES = ".git,.n2o_git_stash";
+
+    @Param({"2000", "8000", "20000"})
+    private int count;
+
+    @Param({"false", "true"})
+    private boolean parallel;
+
+    private ClassPathXmlApplicationContext context;
+    private File root;
+    private Set<File> excludingFiles;
+
+    @Setup(Level.Trial)
+    public void init() {
+        context = new ClassPathXmlApplicationContext("/config-audit-git-context.xml");
+    }
+
+    @Setup(Level.Iteration)
+    public void createFiles() throws IOException {
+        root = Files.createTempDirectory("n2o_clean_benchmark").toFile();
+        excludingFiles = new HashSet<>();
+        for (int i = 0; i < count; i++) {
+            File file = new File(root, "page" + (i % 50) + "/page" + i + ".page.xml");
+            file.getParentFile().mkdirs();
+            Files.write(file.toPath(), "<page/>".getBytes(DEFAULT_FILE_ENCODING));
+            if (i % 10 == 0)
+                excludingFiles.add(file);
+        }
+    }
+
+    @Benchmark
+    public Set<File> deleteAllFiles() throws IOException {
+        return N2oGitFileUtil.deleteAllFiles(root, excludingFiles, IGNORES, parallel);
+    }
+
+    @TearDown(Level.Iteration)
+    public void deleteFiles() throws IOException {
+        N2oGitFileUtil.deleteAllFiles(root, new HashSet<>(), IGNORES, false);
+        root.delete();
+    }
+
+    @TearDown(Level.Trial)
+    public void close() {
+        context.close();
+    }
+}
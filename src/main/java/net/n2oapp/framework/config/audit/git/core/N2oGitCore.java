@@ -1,16 +1,27 @@
 package net.n2oapp.framework.config.audit.git.core;
 
 import net.n2oapp.framework.api.exception.N2oException;
+import net.n2oapp.framework.config.audit.git.model.N2oGitPathState;
 import net.n2oapp.framework.config.audit.git.util.N2oGitConstant;
 import net.n2oapp.framework.config.audit.git.util.N2oGitFileUtil;
 import org.apache.commons.io.FileUtils;
+import org.eclipse.jgit.api.CheckoutCommand;
 import org.eclipse.jgit.api.CreateBranchCommand;
 import org.eclipse.jgit.api.Git;
+import org.eclipse.jgit.api.ResetCommand;
 import org.eclipse.jgit.api.Status;
 import org.eclipse.jgit.api.errors.GitAPIException;
-import org.eclipse.jgit.lib.Constants;
-import org.eclipse.jgit.lib.PersonIdent;
-import org.eclipse.jgit.lib.Repository;
+import org.eclipse.jgit.dircache.*;
+import org.eclipse.jgit.lib.*;
+import org.eclipse.jgit.revwalk.RevCommit;
+import org.eclipse.jgit.revwalk.RevWalk;
+import org.eclipse.jgit.treewalk.EmptyTreeIterator;
+import org.eclipse.jgit.treewalk.FileTreeIterator;
+import org.eclipse.jgit.treewalk.TreeWalk;
+import org.eclipse.jgit.treewalk.WorkingTreeIterator;
+import org.eclipse.jgit.treewalk.filter.PathFilter;
+import org.eclipse.jgit.treewalk.filter.PathFilterGroup;
+import org.eclipse.jgit.treewalk.filter.TreeFilter;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -18,6 +29,9 @@ import java.io.File;
 import java.io.IOException;
 import java.net.URISyntaxException;
 import java.net.URL;
+import java.util.*;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantLock;
 
 import static net.n2oapp.framework.config.audit.git.util.N2oGitConstant.Author.AUTHOR_EMAIL;
 import static net.n2oapp.framework.config.audit.git.util.N2oGitConstant.Author.SYSTEM_AUTHOR_NAME;
@@ -30,6 +44,10 @@ import static net.n2oapp.framework.config.register.audit.model.N2oConfigMessage.
 /**
  * <p>Точка подключения к git репозиторию.</p>
  * <p>Содержит необходимый минимум git команд.</p>
+ * <p>Команды, изменяющие рабочий каталог, git индекс или ветки, выполняются под блокировкой записи
+ * ({@link #getWriteLock()}), поэтому пишущие потоки выполняются по очереди. Читающие потоки блокировку не берут:
+ * они читают неизменяемый снимок - коммит серверной ветки({@link #retrieveSnapshot()}), а не HEAD,
+ * который может указывать на другую ветку во время переключения веток.</p>
  * <p>Синглтон.</p>
  *
  * @author dfirstov
@@ -39,7 +57,11 @@ public class N2oGitCore {
     private static N2oGitCore instance;
     private static Git git;
     private static boolean init;
+    private static final String PATH_INDEX_FILE_NAME = "n2o_path_index";
     private static Logger logger = LoggerFactory.getLogger(N2oGitCore.class);
+    private N2oGitPathIndex pathIndex;
+    private volatile ObjectId initCommitId;
+    private final ReentrantLock writeLock = new ReentrantLock();
 
     private N2oGitCore(String repositoryPath) {
         try {
@@ -70,6 +92,8 @@ public class N2oGitCore {
     }
 
     private void init(File repoPath) {
+        pathIndex = null;
+        initCommitId = null;
         try {
             git = Git.init().setDirectory(repoPath).call();
             if (initRepo(repoPath))
@@ -139,7 +163,7 @@ public class N2oGitCore {
      * @throws IOException     не найден git репозиторий
      * @throws GitAPIException ошибка при выполнении git команды(не найдена ветка)     *
      */
-    public synchronized void doCheckout(String branchName) throws IOException, GitAPIException {
+    public void doCheckout(String branchName) throws IOException, GitAPIException {
         doCheckout(branchName, false);
     }
 
@@ -151,14 +175,36 @@ public class N2oGitCore {
      * @throws IOException     не найден git репозиторий
      * @throws GitAPIException ошибка при выполнении git команды(не найдена ветка)
      */
-    public synchronized void doCheckout(String branchName, boolean isCreate) throws IOException, GitAPIException {
-        boolean createBranch = isCreate && !git.getRepository().getAllRefs().containsKey("refs/heads/" + branchName);
-        if (!isCurrentBranch(branchName)) {
-            git.checkout().
-                    setCreateBranch(createBranch).
-                    setName(branchName).
-                    setUpstreamMode(CreateBranchCommand.SetupUpstreamMode.NOTRACK).
-                    call();
+    public void doCheckout(String branchName, boolean isCreate) throws IOException, GitAPIException {
+        writeLock.lock();
+        try {
+            boolean createBranch = isCreate && !git.getRepository().getAllRefs().containsKey("refs/heads/" + branchName);
+            if (!isCurrentBranch(branchName)) {
+                git.checkout().
+                        setCreateBranch(createBranch).
+                        setName(branchName).
+                        setUpstreamMode(CreateBranchCommand.SetupUpstreamMode.NOTRACK).
+                        call();
+            }
+        } finally {
+            writeLock.unlock();
+        }
+    }
+
+    /**
+     * Восстанавливает файлы из git индекса ({@code git checkout -- paths})
+     *
+     * @param paths локальные пути к файлам
+     * @throws GitAPIException ошибка при выполнении git команды
+     */
+    public void checkoutPaths(Collection<String> paths) throws GitAPIException {
+        writeLock.lock();
+        try {
+            CheckoutCommand checkout = git.checkout();
+            paths.forEach(checkout::addPath);
+            checkout.call();
+        } finally {
+            writeLock.unlock();
         }
     }
 
@@ -169,7 +215,7 @@ public class N2oGitCore {
      * @return true - branchName текущая ветка, false - branchName не текущая ветка
      * throws IOException не найден git репозиторий
      */
-    public synchronized boolean isCurrentBranch(String branchName) throws IOException {
+    public boolean isCurrentBranch(String branchName) throws IOException {
         return branchName.equals(git.getRepository().getBranch());
     }
 
@@ -191,11 +237,14 @@ public class N2oGitCore {
      *
      * @param path локальный путь к файлу
      */
-    public synchronized void add(String path) {
+    public void add(String path) {
+        writeLock.lock();
         try {
             git.add().addFilepattern(path).call();
         } catch (GitAPIException e) {
             throw new N2oException(e);
+        } finally {
+            writeLock.unlock();
         }
     }
 
@@ -204,11 +253,34 @@ public class N2oGitCore {
      *
      * @param path название ветки
      */
-    public synchronized void addUpdated(String path) {
+    public void addUpdated(String path) {
+        writeLock.lock();
         try {
             git.add().setUpdate(true).addFilepattern(path).call();
         } catch (GitAPIException e) {
             throw new N2oException(e);
+        } finally {
+            writeLock.unlock();
+        }
+    }
+
+    /**
+     * Возвращает файлы git индекса к состоянию HEAD ({@code git reset -- paths})
+     *
+     * @param paths локальные пути к файлам
+     */
+    public void resetPaths(Collection<String> paths) {
+        if (paths.isEmpty())
+            return;
+        writeLock.lock();
+        try {
+            ResetCommand reset = git.reset();
+            paths.forEach(reset::addPath);
+            reset.call();
+        } catch (GitAPIException e) {
+            throw new N2oException(e);
+        } finally {
+            writeLock.unlock();
         }
     }
 
@@ -218,13 +290,16 @@ public class N2oGitCore {
      * @param message сообщение коммита
      * @param author  автор коммита
      */
-    public synchronized void commit(String message, String author) {
+    public void commit(String message, String author) {
+        writeLock.lock();
         try {
             message = buildMessage(message);
             PersonIdent personIdent = new PersonIdent(author == null ? "undefined" : author, AUTHOR_EMAIL);
             git.commit().setMessage(message).setAuthor(personIdent).setCommitter(personIdent).call();
         } catch (GitAPIException e) {
             throw new N2oException(e);
+        } finally {
+            writeLock.unlock();
         }
     }
 
@@ -233,7 +308,8 @@ public class N2oGitCore {
      *
      * @return true - в репозитории нет новых, измененных, удаленных, непроиндексированных файлов, false - обратное
      */
-    public synchronized Boolean isClean() {
+    public Boolean isClean() {
+        writeLock.lock();
         try {
             Status statusCall = git.status().call();
             return statusCall.getAdded().isEmpty()
@@ -243,9 +319,456 @@ public class N2oGitCore {
                     && statusCall.getUntracked().isEmpty();
         } catch (GitAPIException e) {
             throw new N2oException(e);
+        } finally {
+            writeLock.unlock();
+        }
+    }
+
+    /**
+     * Сравнивает git индекс с HEAD только по одному файлу, без сканирования рабочего каталога.
+     *
+     * @param path локальный путь к файлу
+     * @return состояние файла в индексе относительно HEAD
+     */
+    public N2oGitPathState retrieveState(String path) {
+        Repository repo = getRepository();
+        try (N2oGitReadSession session = openSession()) {
+            TreeWalk treeWalk = session.getTreeWalk();
+            ObjectId head = repo.resolve(Constants.HEAD);
+            if (head != null)
+                treeWalk.addTree(session.parseCommit(head).getTree());
+            else
+                treeWalk.addTree(new EmptyTreeIterator());
+            treeWalk.addTree(new DirCacheIterator(repo.readDirCache()));
+            treeWalk.setRecursive(true);
+            treeWalk.setFilter(PathFilter.create(path));
+            while (treeWalk.next()) {
+                if (!path.equals(treeWalk.getPathString()))
+                    continue;
+                ObjectId headId = FileMode.MISSING.equals(treeWalk.getRawMode(0)) ? null : treeWalk.getObjectId(0);
+                ObjectId indexId = FileMode.MISSING.equals(treeWalk.getRawMode(1)) ? null : treeWalk.getObjectId(1);
+                return new N2oGitPathState(path, headId, indexId);
+            }
+            return new N2oGitPathState(path, null, null);
+        } catch (IOException e) {
+            throw new N2oException(e);
+        }
+    }
+
+    /**
+     * <p>Делает коммит готового дерева в текущую ветку.</p>
+     * <p>Git индекс и рабочий каталог обновляются только по файлам, отличающимся от HEAD.</p>
+     *
+     * @param treeId  идентификатор дерева коммита
+     * @param message сообщение коммита
+     * @param author  автор коммита
+     * @param parents родители коммита, первым должен быть текущий HEAD
+     * @return идентификатор созданного коммита
+     * @throws IOException ошибка записи в репозиторий
+     */
+    public ObjectId commitTree(ObjectId treeId, String message, String author, ObjectId... parents) throws IOException {
+        writeLock.lock();
+        try {
+            return doCommitTree(treeId, message, author, parents);
+        } finally {
+            writeLock.unlock();
+        }
+    }
+
+    private ObjectId doCommitTree(ObjectId treeId, String message, String author, ObjectId... parents) throws IOException {
+        Repository repo = getRepository();
+        PersonIdent personIdent = new PersonIdent(author == null ? "undefined" : author, AUTHOR_EMAIL);
+        DirCache dirCache = repo.lockDirCache();
+        try (ObjectReader reader = repo.newObjectReader(); RevWalk revWalk = new RevWalk(reader)) {
+            ObjectId oldTreeId = revWalk.parseCommit(parents[0]).getTree().getId();
+            Map<String, DirCacheEntry> changes = retrieveChanges(reader, oldTreeId, treeId);
+            checkLocalChanges(reader, dirCache, oldTreeId, changes.keySet());
+            ObjectId commitId;
+            try (ObjectInserter inserter = repo.newObjectInserter()) {
+                CommitBuilder commitBuilder = new CommitBuilder();
+                commitBuilder.setTreeId(treeId);
+                commitBuilder.setParentIds(parents);
+                commitBuilder.setAuthor(personIdent);
+                commitBuilder.setCommitter(personIdent);
+                commitBuilder.setMessage(message);
+                commitId = inserter.insert(commitBuilder);
+                inserter.flush();
+            }
+            updateHead(commitId, parents[0], "commit: " + message);
+            List<String> written = new ArrayList<>();
+            try {
+                checkoutChanges(reader, changes, written);
+                DirCacheEditor editor = dirCache.editor();
+                changes.forEach((path, entry) -> editor.add(entry == null ? new DirCacheEditor.DeletePath(path)
+                        : new DirCacheEditor.PathEdit(entry) {
+                    @Override
+                    public void apply(DirCacheEntry ent) {
+                        ent.copyMetaData(entry);
+                    }
+                }));
+                editor.commit();
+            } catch (IOException | RuntimeException e) {
+                rollbackCommit(reader, commitId, parents[0], treeId, oldTreeId, written);
+                throw e;
+            }
+            return commitId;
+        } finally {
+            dirCache.unlock();
+        }
+    }
+
+    /**
+     * Возвращает файлы, отличающиеся в двух деревьях
+     *
+     * @return новое состояние файла по локальному пути, null - файл удален
+     */
+    private Map<String, DirCacheEntry> retrieveChanges(ObjectReader reader, ObjectId oldTreeId, ObjectId newTreeId) throws IOException {
+        Map<String, DirCacheEntry> changes = new LinkedHashMap<>();
+        try (TreeWalk treeWalk = new TreeWalk(reader)) {
+            treeWalk.addTree(oldTreeId);
+            treeWalk.addTree(newTreeId);
+            treeWalk.setRecursive(true);
+            treeWalk.setFilter(TreeFilter.ANY_DIFF);
+            while (treeWalk.next()) {
+                String path = treeWalk.getPathString();
+                if (FileMode.MISSING.equals(treeWalk.getRawMode(1))) {
+                    changes.put(path, null);
+                    continue;
+                }
+                DirCacheEntry entry = new DirCacheEntry(path);
+                entry.setFileMode(treeWalk.getFileMode(1));
+                entry.setObjectId(treeWalk.getObjectId(1));
+                changes.put(path, entry);
+            }
+        }
+        return changes;
+    }
+
+    /**
+     * <p>Проверяет, что изменяемые коммитом файлы не имеют локальных изменений: git индекс совпадает с HEAD,
+     * а файл рабочего каталога - с git индексом.</p>
+     * <p>Отсутствующий в рабочем каталоге файл изменением не считается: каталог конфигураций хранит не все файлы.</p>
+     */
+    private void checkLocalChanges(ObjectReader reader, DirCache dirCache, ObjectId headTreeId, Collection<String> paths) throws IOException {
+        if (paths.isEmpty())
+            return;
+        List<String> changedPaths = new ArrayList<>();
+        try (TreeWalk treeWalk = new TreeWalk(reader)) {
+            treeWalk.addTree(headTreeId);
+            treeWalk.addTree(new DirCacheIterator(dirCache));
+            treeWalk.addTree(new FileTreeIterator(getRepository()));
+            treeWalk.setRecursive(true);
+            treeWalk.setFilter(PathFilterGroup.createFromStrings(paths));
+            while (treeWalk.next()) {
+                DirCacheIterator index = treeWalk.getTree(1, DirCacheIterator.class);
+                WorkingTreeIterator file = treeWalk.getTree(2, WorkingTreeIterator.class);
+                boolean staged = treeWalk.getRawMode(0) != treeWalk.getRawMode(1) || !treeWalk.idEqual(0, 1);
+                boolean modified = file != null && (index == null || file.isModified(index.getDirCacheEntry(), true, reader));
+                if (staged || modified)
+                    changedPaths.add(treeWalk.getPathString());
+            }
+        }
+        if (!changedPaths.isEmpty())
+            throw new N2oException("Config audit commit error: local changes would be overwritten " + changedPaths);
+    }
+
+    private void checkoutChanges(ObjectReader reader, Map<String, DirCacheEntry> changes, List<String> written) throws IOException {
+        Repository repo = getRepository();
+        for (Map.Entry<String, DirCacheEntry> change : changes.entrySet()) {
+            DirCacheEntry entry = change.getValue();
+            if (entry == null)
+                FileUtils.deleteQuietly(new File(repo.getWorkTree(), change.getKey()));
+            else
+                DirCacheCheckout.checkoutEntry(repo, entry, reader);
+            written.add(change.getKey());
+        }
+    }
+
+    private void updateHead(ObjectId newId, ObjectId expectedId, String refLogMessage) throws IOException {
+        RefUpdate refUpdate = getRepository().updateRef(Constants.HEAD);
+        refUpdate.setNewObjectId(newId);
+        refUpdate.setExpectedOldObjectId(expectedId);
+        refUpdate.setRefLogMessage(refLogMessage, false);
+        RefUpdate.Result result = refUpdate.forceUpdate();
+        if (!RefUpdate.Result.FAST_FORWARD.equals(result) && !RefUpdate.Result.FORCED.equals(result))
+            throw new N2oException("Config audit update HEAD error: " + result);
+    }
+
+    /**
+     * Возвращает HEAD на прежний коммит и восстанавливает уже записанные файлы рабочего каталога.
+     * Git индекс к этому моменту не изменен.
+     */
+    private void rollbackCommit(ObjectReader reader, ObjectId commitId, ObjectId parentId, ObjectId treeId, ObjectId oldTreeId,
+                                List<String> written) {
+        try {
+            updateHead(parentId, commitId, "rollback: " + commitId.name());
+            Map<String, DirCacheEntry> restores = retrieveChanges(reader, treeId, oldTreeId);
+            restores.keySet().retainAll(written);
+            checkoutChanges(reader, restores, new ArrayList<>());
+        } catch (IOException | RuntimeException e) {
+            logger.error("Config audit rollback commit " + commitId.name() + " error.", e);
+        }
+    }
+
+    /**
+     * <p>Оптимистичный коммит: дерево строится в памяти от последнего коммита ветки без блокировки записи,
+     * поэтому независимые изменения готовятся параллельно.</p>
+     * <p>Под блокировкой записи только переводится ветка({@link RefUpdate} с ожидаемым прежним коммитом)
+     * и, если ветка текущая, обновляется git индекс по измененным файлам. Рабочий каталог не изменяется:
+     * содержимое файлов берется из него. Если ветку уже перевел другой поток, изменение применяется заново
+     * к новому коммиту ветки, не более {@code optimisticCommitAttempts} попыток.</p>
+     *
+     * @param branchName название ветки
+     * @param author     автор коммита
+     * @param edit       изменение дерева коммита
+     * @return идентификатор созданного коммита, null - изменений нет
+     * @throws IOException ошибка чтения или записи репозитория
+     */
+    public ObjectId commitOptimistic(String branchName, String author, N2oGitTreeEditor.Edit edit) throws IOException {
+        Repository repo = getRepository();
+        for (int attempt = 1; ; attempt++) {
+            RefUpdate.Result result;
+            try (N2oGitTreeEditor treeEditor = new N2oGitTreeEditor(repo, branchName)) {
+                String message = edit.apply(treeEditor);
+                if (message == null)
+                    return null;
+                ObjectId treeId = treeEditor.writeTree();
+                if (treeId.equals(treeEditor.getBaseTreeId()))
+                    return null;
+                ObjectId commitId = treeEditor.insertCommit(treeId, message, author);
+                writeLock.lock();
+                try {
+                    result = treeEditor.updateRef(commitId, message);
+                    if (N2oGitTreeEditor.isUpdated(result)) {
+                        if (treeEditor.getBaseTreeId() != null && isCurrentBranch(branchName))
+                            updateIndex(treeEditor, treeId);
+                        return commitId;
+                    }
+                } finally {
+                    writeLock.unlock();
+                }
+            }
+            if (!RefUpdate.Result.LOCK_FAILURE.equals(result) && !RefUpdate.Result.REJECTED.equals(result))
+                throw new N2oException("Config audit update branch " + branchName + " error: " + result);
+            if (attempt >= optimisticCommitAttempts)
+                throw new N2oException("Config audit optimistic commit error: branch " + branchName
+                        + " was changed during " + attempt + " attempts.");
+            logger.debug("Config audit branch {} was changed during commit, attempt {}.", branchName, attempt);
+        }
+    }
+
+    /**
+     * Обновляет git индекс по файлам, отличающимся в базовом и новом деревьях, без записи в рабочий каталог.
+     * Размер и время изменения записей берутся на момент чтения файлов построителем коммита. Для файлов,
+     * не читавшихся из рабочего каталога, они остаются нулевыми, и git сравнивает такие файлы по содержимому.
+     */
+    private void updateIndex(N2oGitTreeEditor treeEditor, ObjectId newTreeId) throws IOException {
+        Repository repo = getRepository();
+        DirCache dirCache = repo.lockDirCache();
+        try (TreeWalk treeWalk = new TreeWalk(treeEditor.getReader())) {
+            DirCacheEditor editor = dirCache.editor();
+            treeWalk.addTree(treeEditor.getBaseTreeId());
+            treeWalk.addTree(newTreeId);
+            treeWalk.setRecursive(true);
+            treeWalk.setFilter(TreeFilter.ANY_DIFF);
+            while (treeWalk.next()) {
+                String path = treeWalk.getPathString();
+                if (FileMode.MISSING.equals(treeWalk.getRawMode(1))) {
+                    editor.add(new DirCacheEditor.DeletePath(path));
+                    continue;
+                }
+                DirCacheEntry entry = new DirCacheEntry(path);
+                entry.setFileMode(treeWalk.getFileMode(1));
+                entry.setObjectId(treeWalk.getObjectId(1));
+                DirCacheEntry stat = treeEditor.getFileStat(path);
+                if (stat != null) {
+                    entry.setLength(stat.getLength());
+                    entry.setLastModified(stat.getLastModified());
+                }
+                editor.add(new DirCacheEditor.PathEdit(entry) {
+                    @Override
+                    public void apply(DirCacheEntry ent) {
+                        ent.copyMetaData(entry);
+                    }
+                });
+            }
+            editor.commit();
+        } finally {
+            dirCache.unlock();
+        }
+    }
+
+    /**
+     * Возвращает пути файлов, измененных коммитами между двумя состояниями ветки.
+     * Коммиты перебираются по первому родителю от нового состояния к старому.
+     *
+     * @param oldId старое состояние ветки
+     * @param newId новое состояние ветки
+     * @return пути измененных файлов, null - старое состояние не является предком нового
+     * @throws IOException ошибка чтения репозитория
+     */
+    public Set<String> retrieveChangedPaths(ObjectId oldId, ObjectId newId) throws IOException {
+        Set<String> paths = new HashSet<>();
+        if (oldId == null || newId == null || oldId.equals(newId))
+            return paths;
+        try (N2oGitReadSession session = openSession()) {
+            TreeWalk treeWalk = session.getTreeWalk();
+            treeWalk.setRecursive(true);
+            treeWalk.setFilter(TreeFilter.ANY_DIFF);
+            RevCommit commit = session.parseCommit(newId);
+            while (!commit.equals(oldId)) {
+                if (commit.getParentCount() == 0)
+                    return null;
+                RevCommit parent = session.parseCommit(commit.getParent(0));
+                treeWalk.reset(parent.getTree(), commit.getTree());
+                while (treeWalk.next())
+                    paths.add(treeWalk.getPathString());
+                commit = parent;
+            }
+        }
+        return paths;
+    }
+
+    /**
+     * <p>Возвращает блокировку записи.</p>
+     * <p>Блокировка реентерабельная: команды ядра берут ее сами, а последовательность команд, которая должна
+     * выполниться без вмешательства других пишущих потоков(добавление в индекс и коммит, слияние), берет ее целиком.</p>
+     *
+     * @return блокировка записи
+     */
+    public Lock getWriteLock() {
+        return writeLock;
+    }
+
+    /**
+     * Возвращает снимок для чтения - текущий коммит серверной ветки.
+     * Коммит неизменяем, поэтому чтение по нему не требует блокировки и не зависит от переключения веток.
+     *
+     * @return идентификатор коммита, null - серверной ветки нет
+     * @throws IOException ошибка чтения репозитория
+     */
+    public ObjectId retrieveSnapshot() throws IOException {
+        Ref serverRef = getRepository().exactRef(Constants.R_HEADS + SERVER_BRANCH_NAME);
+        return serverRef != null ? serverRef.getObjectId() : null;
+    }
+
+    /**
+     * Открывает сессию чтения репозитория
+     *
+     * @return сессия чтения, должна быть закрыта после использования
+     */
+    public N2oGitReadSession openSession() {
+        return new N2oGitReadSession(getRepository());
+    }
+
+    /**
+     * @return количество открытых сессий чтения
+     */
+    public int getOpenSessionCount() {
+        return N2oGitReadSession.getOpenCount();
+    }
+
+    /**
+     * Начинает построение коммита в памяти на основе последнего коммита ветки
+     *
+     * @param branchName название ветки
+     * @return построитель коммита, должен быть закрыт после использования
+     * @throws IOException ошибка чтения репозитория
+     */
+    public N2oGitTreeEditor editBranch(String branchName) throws IOException {
+        return new N2oGitTreeEditor(getRepository(), branchName);
+    }
+
+    /**
+     * <p>Возвращает коммиты, изменявшие файл, по индексу изменений.</p>
+     * <p>Индекс строится по серверной ветке и читается на снимке({@link #retrieveSnapshot()}).
+     * Перед чтением индекс дописывается коммитами, сделанными после последнего обновления.</p>
+     *
+     * @param path локальный путь к файлу
+     * @return идентификаторы коммитов, начиная с последнего, null - индекс недоступен
+     * @throws IOException ошибка чтения репозитория или файла индекса
+     */
+    public List<ObjectId> retrievePathCommits(String path) throws IOException {
+        return retrievePathCommits(path, retrieveSnapshot());
+    }
+
+    /**
+     * Возвращает коммиты, изменявшие файл, по индексу изменений на заданном снимке
+     *
+     * @param path       локальный путь к файлу
+     * @param snapshotId снимок - коммит серверной ветки
+     * @return идентификаторы коммитов, начиная с последнего, null - индекс недоступен
+     * @throws IOException ошибка чтения репозитория или файла индекса
+     */
+    public List<ObjectId> retrievePathCommits(String path, ObjectId snapshotId) throws IOException {
+        if (!pathIndexEnabled || snapshotId == null)
+            return null;
+        return getPathIndex().retrieveCommits(path, snapshotId);
+    }
+
+    /**
+     * Дописывает в индекс изменений новые коммиты серверной ветки
+     *
+     * @throws IOException ошибка чтения репозитория или записи файла индекса
+     */
+    public void updatePathIndex() throws IOException {
+        if (!pathIndexEnabled)
+            return;
+        Ref serverRef = getRepository().exactRef(Constants.R_HEADS + SERVER_BRANCH_NAME);
+        if (serverRef != null)
+            getPathIndex().update(serverRef.getObjectId());
+    }
+
+    /**
+     * Строит индекс изменений серверной ветки заново(например, после переписывания истории ветки).
+     * Кэш начального коммита сбрасывается.
+     *
+     * @throws IOException ошибка чтения репозитория или записи файла индекса
+     */
+    public void rebuildPathIndex() throws IOException {
+        initCommitId = null;
+        Ref serverRef = getRepository().exactRef(Constants.R_HEADS + SERVER_BRANCH_NAME);
+        getPathIndex().rebuild(serverRef != null ? serverRef.getObjectId() : null);
+    }
+
+    /**
+     * <p>Возвращает начальный коммит репозитория({@code INIT_COMMIT_PREFIX}).</p>
+     * <p>Коммит ищется один раз по первым родителям от вершины серверной ветки и кэшируется
+     * до повторной инициализации репозитория или перестроения индекса изменений.
+     * Перед использованием проверяется только, что коммит есть в репозитории и не имеет родителей,
+     * без обхода истории. Одновременный поиск несколькими потоками находит один и тот же коммит.</p>
+     *
+     * @return идентификатор начального коммита, null - не найден
+     * @throws IOException ошибка чтения репозитория
+     */
+    public ObjectId retrieveInitCommit() throws IOException {
+        Repository repo = getRepository();
+        Ref serverRef = repo.exactRef(Constants.R_HEADS + SERVER_BRANCH_NAME);
+        if (serverRef == null)
+            return null;
+        ObjectId cachedId = initCommitId;
+        try (N2oGitReadSession session = openSession()) {
+            if (cachedId != null && session.getReader().has(cachedId) && session.parseCommit(cachedId).getParentCount() == 0)
+                return cachedId;
+            ObjectId foundId = null;
+            RevCommit commit = session.parseCommit(serverRef.getObjectId());
+            while (commit.getParentCount() > 0)
+                commit = session.parseCommit(commit.getParent(0));
+            if (commit.getFullMessage().startsWith(INIT_COMMIT_PREFIX.value))
+                foundId = commit.copy();
+            else
+                logger.warn("Config audit init commit not found, root commit is {}.", commit.getName());
+            initCommitId = foundId;
+            return foundId;
         }
     }
 
+    private synchronized N2oGitPathIndex getPathIndex() {
+        if (pathIndex == null)
+            pathIndex = new N2oGitPathIndex(getRepository(), new File(getRepository().getDirectory(), PATH_INDEX_FILE_NAME));
+        return pathIndex;
+    }
+
     /**
      * Возвращает инициализированный объект {@link Git}
      *
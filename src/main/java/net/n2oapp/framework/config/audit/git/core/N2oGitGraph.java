@@ -0,0 +1,249 @@
+package net.n2oapp.framework.config.audit.git.core;
+
+import net.n2oapp.framework.config.audit.git.model.N2oGitGraphCommit;
+import org.eclipse.jgit.lib.ObjectId;
+import org.eclipse.jgit.lib.PersonIdent;
+import org.eclipse.jgit.lib.Ref;
+import org.eclipse.jgit.lib.Repository;
+import org.eclipse.jgit.revwalk.RevCommit;
+import org.eclipse.jgit.revwalk.RevObject;
+import org.eclipse.jgit.revwalk.RevSort;
+import org.eclipse.jgit.revwalk.RevWalk;
+
+import java.io.IOException;
+import java.util.*;
+
+import static net.n2oapp.framework.config.audit.git.util.N2oGitConstant.DEFAULT_LINE_END;
+
+/**
+ * <p>Граф коммитов.</p>
+ * <p>Текстовый граф строится от последнего коммита репозитория по первым родителям, для коммита слияния
+ * показывается и второй родитель. Все коммиты читаются в одной сессии({@link N2oGitReadSession}), текст пишется сразу в {@link Appendable}.</p>
+ * <p>Текст каждого коммита кэшируется, поэтому после новых коммитов строятся только они,
+ * остальной текст берется из кэша. Количество коммитов ограничивается окном по количеству или по дате.</p>
+ * <p>Для отрисовки на клиенте граф возвращается моделью({@link N2oGitGraphCommit}): коммиты всех веток
+ * с родителями и номером линии, постранично.</p>
+ */
+public class N2oGitGraph {
+    private static final String COMMIT = "commit ";
+    private static final String AUTHOR = "Author: ";
+    private static final String DATE = "Date: ";
+    private static final String MESSAGE = "Message: ";
+    private static final String MERGE = "Merge: ";
+    private final Repository repo;
+    private List<Element> cache = Collections.emptyList();
+
+    /**
+     * @param repo git репозиторий
+     */
+    public N2oGitGraph(Repository repo) {
+        this.repo = repo;
+    }
+
+    /**
+     * Строит граф коммитов
+     *
+     * @param out      вывод графа, каждая строка начинается с перевода строки
+     * @param maxCount максимальное количество коммитов, 0 - без ограничения
+     * @param since    дата, с которой показываются коммиты, null - без ограничения
+     * @throws IOException ошибка чтения репозитория или записи графа
+     */
+    public synchronized void render(Appendable out, int maxCount, Date since) throws IOException {
+        List<Element> elements = new ArrayList<>();
+        try (N2oGitReadSession session = new N2oGitReadSession(repo)) {
+            RevWalk revWalk = session.getRevWalk();
+            ObjectId commitId = retrieveLastCommit(revWalk);
+            int cacheIndex = -1;
+            boolean forked = false;
+            while (commitId != null && (maxCount <= 0 || elements.size() < maxCount)) {
+                if (cacheIndex < 0 && !cache.isEmpty() && cache.get(0).commitId.equals(commitId))
+                    cacheIndex = 0;
+                Element element = null;
+                if (cacheIndex >= 0 && cacheIndex < cache.size()) {
+                    Element cached = cache.get(cacheIndex++);
+                    if (cached.forked == forked && cached.first == elements.isEmpty())
+                        element = cached;
+                }
+                if (element == null)
+                    element = render(revWalk, commitId, forked, elements.isEmpty());
+                if (since != null && element.commitTime * 1000L < since.getTime())
+                    break;
+                elements.add(element);
+                out.append(element.text);
+                forked |= element.merge;
+                commitId = element.parentId;
+            }
+        }
+        if (cache.isEmpty() || elements.isEmpty() || !cache.get(0).commitId.equals(elements.get(0).commitId)
+                || elements.size() > cache.size())
+            cache = elements;
+    }
+
+    /**
+     * <p>Возвращает страницу графа коммитов всех веток, начиная с последнего коммита.</p>
+     * <p>Коммиты перебираются одним {@link RevWalk} с сортировкой {@link RevSort#TOPO} и {@link RevSort#COMMIT_TIME_DESC}:
+     * потомки всегда выдаются раньше родителей, даже если время коммита потомка меньше времени родителя
+     * (расхождение часов) или совпадает с ним. Для этого {@link RevSort#TOPO} читает всю историю до выдачи
+     * первого коммита. Линии назначаются по ходу обхода: коммит
+     * занимает линию, в которой его ожидает потомок, первый родитель продолжает линию коммита, остальные родители
+     * занимают свободные линии.</p>
+     *
+     * @param offset количество пропускаемых коммитов
+     * @param limit  максимальное количество коммитов
+     * @return коммиты графа
+     * @throws IOException ошибка чтения репозитория
+     */
+    public List<N2oGitGraphCommit> retrieveCommits(int offset, int limit) throws IOException {
+        List<N2oGitGraphCommit> commits = new ArrayList<>();
+        try (N2oGitReadSession session = new N2oGitReadSession(repo)) {
+            RevWalk revWalk = session.getRevWalk();
+            revWalk.sort(RevSort.TOPO);
+            revWalk.sort(RevSort.COMMIT_TIME_DESC, true);
+            for (Ref ref : repo.getAllRefs().values()) {
+                if (ref.getObjectId() == null)
+                    continue;
+                RevObject object = revWalk.peel(revWalk.parseAny(ref.getObjectId()));
+                if (object instanceof RevCommit)
+                    revWalk.markStart((RevCommit) object);
+            }
+            List<ObjectId> lanes = new ArrayList<>();
+            int index = 0;
+            RevCommit commit;
+            while (commits.size() < limit && (commit = revWalk.next()) != null) {
+                int lane = assignLane(lanes, commit);
+                if (index++ >= offset)
+                    commits.add(toGraphCommit(commit, lane));
+            }
+        }
+        return commits;
+    }
+
+    private static N2oGitGraphCommit toGraphCommit(RevCommit commit, int lane) {
+        List<String> parents = new ArrayList<>(commit.getParentCount());
+        for (RevCommit parent : commit.getParents())
+            parents.add(parent.getName());
+        PersonIdent authorIdent = commit.getAuthorIdent();
+        return new N2oGitGraphCommit(commit.getName(), parents, lane, authorIdent.getName(),
+                authorIdent.getWhen(), commit.getFullMessage());
+    }
+
+    private static int assignLane(List<ObjectId> lanes, RevCommit commit) {
+        int lane = -1;
+        for (int i = 0; i < lanes.size(); i++) {
+            if (!commit.equals(lanes.get(i)))
+                continue;
+            if (lane < 0)
+                lane = i;
+            else
+                lanes.set(i, null);
+        }
+        if (lane < 0)
+            lane = freeLane(lanes);
+        lanes.set(lane, commit.getParentCount() > 0 ? commit.getParent(0) : null);
+        for (int i = 1; i < commit.getParentCount(); i++) {
+            RevCommit parent = commit.getParent(i);
+            if (!lanes.contains(parent))
+                lanes.set(freeLane(lanes), parent);
+        }
+        return lane;
+    }
+
+    private static int freeLane(List<ObjectId> lanes) {
+        int lane = lanes.indexOf(null);
+        if (lane >= 0)
+            return lane;
+        lanes.add(null);
+        return lanes.size() - 1;
+    }
+
+    private RevCommit retrieveLastCommit(RevWalk revWalk) throws IOException {
+        RevCommit last = null;
+        for (Ref ref : repo.getAllRefs().values()) {
+            if (ref.getObjectId() == null)
+                continue;
+            RevObject object = revWalk.peel(revWalk.parseAny(ref.getObjectId()));
+            if (object instanceof RevCommit && (last == null || ((RevCommit) object).getCommitTime() > last.getCommitTime()))
+                last = (RevCommit) object;
+        }
+        return last;
+    }
+
+    private Element render(RevWalk revWalk, ObjectId commitId, boolean forked, boolean first) throws IOException {
+        RevCommit commit = revWalk.parseCommit(commitId);
+        StringBuilder text = new StringBuilder();
+        if (commit.getParentCount() > 1) {
+            RevCommit ours = revWalk.parseCommit(commit.getParent(0));
+            RevCommit theirs = revWalk.parseCommit(commit.getParent(1));
+            line(text, (forked ? "* |  " : "*   ") + COMMIT + commit.getName());
+            line(text, (forked ? "|\\ \\ " : "|\\  ") + MERGE + ours.getName().substring(0, 6) + " " + theirs.getName().substring(0, 6));
+            line(text, (forked ? "| |/" : "| |") + " " + AUTHOR + commit.getAuthorIdent().getName());
+            forkedBlock(text, commit);
+            line(text, "| * " + COMMIT + theirs.getName());
+            if (ours.getParentCount() > 0) {
+                line(text, "| | " + AUTHOR + theirs.getAuthorIdent().getName());
+                forkedBlock(text, theirs);
+            } else {
+                line(text, "|/  " + AUTHOR + theirs.getAuthorIdent().getName());
+                line(text, "|   " + DATE + theirs.getAuthorIdent().getWhen());
+                line(text, "|   " + MESSAGE + theirs.getFullMessage());
+                line(text, "|");
+            }
+        } else if (commit.getParentCount() == 0 && (forked || !first)) {
+            line(text, "*   " + COMMIT + commit.getName());
+            line(text, "    " + AUTHOR + commit.getAuthorIdent().getName());
+            line(text, "    " + DATE + commit.getAuthorIdent().getWhen());
+            line(text, "    " + MESSAGE + commit.getFullMessage());
+        } else if (forked) {
+            line(text, "* | " + COMMIT + commit.getName());
+            line(text, "| | " + AUTHOR + commit.getAuthorIdent().getName());
+            forkedBlock(text, commit);
+        } else {
+            line(text, "*   " + COMMIT + commit.getName());
+            line(text, "|   " + AUTHOR + commit.getAuthorIdent().getName());
+            line(text, "|   " + DATE + commit.getAuthorIdent().getWhen());
+            line(text, "|   " + MESSAGE + commit.getFullMessage());
+            line(text, "|");
+        }
+        ObjectId parentId = commit.getParentCount() > 0 ? commit.getParent(0).copy() : null;
+        return new Element(commit.copy(), parentId, commit.getCommitTime(), commit.getParentCount() > 1, forked, first,
+                text.toString());
+    }
+
+    private static void forkedBlock(StringBuilder text, RevCommit commit) {
+        line(text, "| | " + DATE + commit.getAuthorIdent().getWhen());
+        line(text, "| | " + MESSAGE + commit.getFullMessage());
+        line(text, "| |");
+    }
+
+    private static void line(StringBuilder text, String line) {
+        text.append(DEFAULT_LINE_END).append(line);
+    }
+
+    public synchronized void clear() {
+        cache = Collections.emptyList();
+    }
+
+    /**
+     * Текст коммита в графе. Зависит от того, было ли выше слияние и является ли коммит первым в графе.
+     */
+    private static class Element {
+        private final ObjectId commitId;
+        private final ObjectId parentId;
+        private final int commitTime;
+        private final boolean merge;
+        private final boolean forked;
+        private final boolean first;
+        private final String text;
+
+        private Element(ObjectId commitId, ObjectId parentId, int commitTime, boolean merge, boolean forked, boolean first,
+                        String text) {
+            this.commitId = commitId;
+            this.parentId = parentId;
+            this.commitTime = commitTime;
+            this.merge = merge;
+            this.forked = forked;
+            this.first = first;
+            this.text = text;
+        }
+    }
+}
@@ -0,0 +1,310 @@
+package net.n2oapp.framework.config.audit.git.core;
+
+import net.n2oapp.framework.config.audit.git.model.N2oGitHistory;
+import net.n2oapp.framework.config.register.audit.model.N2oConfigHistory;
+import org.eclipse.jgit.diff.DiffEntry;
+import org.eclipse.jgit.diff.DiffFormatter;
+import org.eclipse.jgit.lib.*;
+import org.eclipse.jgit.revwalk.RevCommit;
+import org.eclipse.jgit.revwalk.RevWalk;
+import org.eclipse.jgit.treewalk.TreeWalk;
+import org.eclipse.jgit.treewalk.filter.AndTreeFilter;
+import org.eclipse.jgit.treewalk.filter.PathFilter;
+import org.eclipse.jgit.treewalk.filter.TreeFilter;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.text.SimpleDateFormat;
+import java.util.*;
+
+import static net.n2oapp.framework.config.audit.git.util.N2oGitConstant.DEFAULT_FILE_ENCODING;
+
+/**
+ * <p>Обход истории изменений одного файла.</p>
+ * <p>Коммиты, изменявшие файл, перебираются одним {@link RevWalk} с фильтром по пути(аналог {@code git log -- path}),
+ * все объекты читаются в одной сессии({@link N2oGitReadSession}), которая закрывается вместе с обходом.
+ * Содержимое версий файла читается по идентификаторам из {@link DiffEntry}, без повторного разбора деревьев.</p>
+ * <p>История читается постепенно: коммиты перебираются только до получения нужного количества записей.
+ * Записи истории({@link N2oGitHistory}) читают разницу и содержимое версий файла только при обращении к ним.</p>
+ * <p>Записи, которые переживают обход(например, в кэше), отвязываются от него через {@link #detach(List)},
+ * чтобы не удерживать закрытый обход с его буферами.</p>
+ */
+public class N2oGitHistoryWalk implements Iterator<N2oConfigHistory>, N2oGitHistory.Source, AutoCloseable {
+    private final String localPath;
+    private final N2oGitReadSession session;
+    private final RevWalk revWalk;
+    private final TreeWalk treeWalk;
+    private final ByteArrayOutputStream diffOut = new ByteArrayOutputStream();
+    private final DiffFormatter formatter;
+    private final RevCommit initCommit;
+    private final SimpleDateFormat dateFormat = new SimpleDateFormat();
+    private final RepositorySource detachedSource;
+    private Iterator<ObjectId> candidates;
+    private RevCommit next;
+    private RevCommit current;
+    private RevCommit currentOld;
+    private List<DiffEntry> pending = Collections.emptyList();
+    private int pendingIndex;
+    private boolean closed;
+
+    /**
+     * @param repo         git репозиторий
+     * @param localPath    локальный путь к файлу
+     * @param startId      коммит, с которого начинается обход(обычно HEAD)
+     * @param initCommitId начальный коммит репозитория, с которым сравнивается первая версия файла, может быть null
+     * @throws IOException ошибка чтения репозитория
+     */
+    public N2oGitHistoryWalk(Repository repo, String localPath, ObjectId startId, ObjectId initCommitId) throws IOException {
+        this(repo, localPath, initCommitId);
+        revWalk.setTreeFilter(AndTreeFilter.create(PathFilter.create(localPath), TreeFilter.ANY_DIFF));
+        if (startId != null)
+            revWalk.markStart(revWalk.parseCommit(startId));
+        next = startId != null ? revWalk.next() : null;
+    }
+
+    /**
+     * Обход по готовому списку коммитов, изменявших файл(из {@link N2oGitPathIndex}).
+     * Каждая версия сравнивается с первым родителем коммита(для слияния - с первым родителем, содержащим файл),
+     * первая версия файла - с начальным коммитом, как и при обходе с фильтром по пути.
+     *
+     * @param repo         git репозиторий
+     * @param localPath    локальный путь к файлу
+     * @param commitIds    коммиты, изменявшие файл, начиная с последнего
+     * @param initCommitId начальный коммит репозитория, с которым сравнивается первая версия файла, может быть null
+     * @throws IOException ошибка чтения репозитория
+     */
+    public N2oGitHistoryWalk(Repository repo, String localPath, List<ObjectId> commitIds, ObjectId initCommitId) throws IOException {
+        this(repo, localPath, initCommitId);
+        this.candidates = commitIds.iterator();
+        next = nextCandidate();
+    }
+
+    private N2oGitHistoryWalk(Repository repo, String localPath, ObjectId initCommitId) throws IOException {
+        this.localPath = localPath;
+        this.session = new N2oGitReadSession(repo);
+        this.revWalk = session.getRevWalk();
+        this.treeWalk = session.getTreeWalk();
+        treeWalk.setRecursive(true);
+        treeWalk.setFilter(AndTreeFilter.create(PathFilter.create(localPath), TreeFilter.ANY_DIFF));
+        this.formatter = new DiffFormatter(diffOut);
+        formatter.setRepository(repo);
+        this.detachedSource = new RepositorySource(repo);
+        this.initCommit = initCommitId != null ? revWalk.parseCommit(initCommitId) : null;
+    }
+
+    /**
+     * Возвращает историю изменений файла
+     *
+     * @return записи истории, начиная с последнего изменения
+     * @throws IOException ошибка чтения репозитория
+     */
+    public List<N2oConfigHistory> readAll() throws IOException {
+        return read(0, Integer.MAX_VALUE);
+    }
+
+    /**
+     * Возвращает часть истории изменений файла.
+     * Обход останавливается, как только прочитано нужное количество записей.
+     *
+     * @param offset количество пропускаемых записей
+     * @param limit  максимальное количество записей
+     * @return записи истории, начиная с последнего изменения
+     * @throws IOException ошибка чтения репозитория
+     */
+    public List<N2oConfigHistory> read(int offset, int limit) throws IOException {
+        for (int i = 0; i < offset && fill(); i++)
+            pendingIndex++;
+        List<N2oConfigHistory> histories = new ArrayList<>();
+        while (histories.size() < limit && fill())
+            histories.add(createHistory(pending.get(pendingIndex++), current));
+        return histories;
+    }
+
+    /**
+     * Переходит к коммиту, следующему за указанным.
+     * Коммиты до указанного пропускаются без сравнения деревьев.
+     *
+     * @param commitId идентификатор коммита(код записи истории)
+     * @return true - коммит найден в истории файла
+     * @throws IOException ошибка чтения репозитория
+     */
+    public boolean seek(String commitId) throws IOException {
+        pending = Collections.emptyList();
+        pendingIndex = 0;
+        RevCommit commit;
+        while ((commit = advance()) != null) {
+            if (commit.getName().equals(commitId))
+                return true;
+        }
+        return false;
+    }
+
+    @Override
+    public boolean hasNext() {
+        try {
+            return fill();
+        } catch (IOException e) {
+            throw new RuntimeException("Config audit history error.", e);
+        }
+    }
+
+    @Override
+    public N2oConfigHistory next() {
+        if (!hasNext())
+            throw new NoSuchElementException();
+        return createHistory(pending.get(pendingIndex++), current);
+    }
+
+    private boolean fill() throws IOException {
+        while (pendingIndex >= pending.size()) {
+            if (advance() == null)
+                return false;
+            pending = scan(currentOld, current);
+            pendingIndex = 0;
+        }
+        return true;
+    }
+
+    private RevCommit advance() throws IOException {
+        RevCommit newCommit = next;
+        if (newCommit == null)
+            return null;
+        next = nextCandidate();
+        RevCommit oldCommit = retrieveOldCommit(newCommit, next == null);
+        if (oldCommit == null || oldCommit.equals(newCommit)) {
+            next = null;
+            return null;
+        }
+        current = newCommit;
+        currentOld = oldCommit;
+        return newCommit;
+    }
+
+    /**
+     * Определяет коммит, с которым сравнивается версия файла.
+     * Обход с фильтром по пути отбрасывает родителей слияния, в которых файла нет,
+     * поэтому при обходе по списку коммитов слияние сравнивается с первым родителем, содержащим файл.
+     */
+    private RevCommit retrieveOldCommit(RevCommit newCommit, boolean last) throws IOException {
+        if (last || newCommit.getParentCount() == 0)
+            return initCommit;
+        if (candidates == null || newCommit.getParentCount() == 1)
+            return newCommit.getParent(0);
+        for (RevCommit parent : newCommit.getParents()) {
+            revWalk.parseHeaders(parent);
+            try (TreeWalk pathWalk = TreeWalk.forPath(session.getReader(), localPath, parent.getTree())) {
+                if (pathWalk != null)
+                    return parent;
+            }
+        }
+        return initCommit;
+    }
+
+    private RevCommit nextCandidate() throws IOException {
+        if (candidates == null)
+            return revWalk.next();
+        return candidates.hasNext() ? revWalk.parseCommit(candidates.next()) : null;
+    }
+
+    private List<DiffEntry> scan(RevCommit oldCommit, RevCommit newCommit) throws IOException {
+        revWalk.parseHeaders(oldCommit);
+        treeWalk.reset(oldCommit.getTree(), newCommit.getTree());
+        return DiffEntry.scan(treeWalk);
+    }
+
+    private N2oConfigHistory createHistory(DiffEntry entry, RevCommit newCommit) {
+        N2oGitHistory history = new N2oGitHistory(entry, newCommit.toString(), this);
+        history.setId(newCommit.getName() + "_" + entry.toString());
+        history.setCode(newCommit.getName());
+        history.setLocalPath(localPath);
+        PersonIdent authorIdent = newCommit.getAuthorIdent();
+        history.setAuthor(authorIdent.getName());
+        history.setMessage(newCommit.getFullMessage());
+        history.setDate(dateFormat.format(authorIdent.getWhen()));
+        return history;
+    }
+
+    /**
+     * Возвращает копии записей истории, которые читают разницу и содержимое из репозитория без обхода
+     *
+     * @param histories записи истории этого обхода
+     * @return записи истории, не ссылающиеся на обход
+     */
+    public List<N2oConfigHistory> detach(List<N2oConfigHistory> histories) {
+        List<N2oConfigHistory> detached = new ArrayList<>(histories.size());
+        for (N2oConfigHistory history : histories)
+            detached.add(history instanceof N2oGitHistory ? ((N2oGitHistory) history).copy(detachedSource) : history);
+        return detached;
+    }
+
+    /**
+     * Формирует разницу изменения файла.
+     * После закрытия обхода используется отдельный {@link DiffFormatter}.
+     */
+    @Override
+    public synchronized String formatDiff(DiffEntry entry) throws IOException {
+        if (closed)
+            return detachedSource.formatDiff(entry);
+        diffOut.reset();
+        formatter.format(entry);
+        formatter.flush();
+        return new String(diffOut.toByteArray(), DEFAULT_FILE_ENCODING);
+    }
+
+    /**
+     * Читает содержимое файла.
+     * Пока обход открыт, используется его сессия, после закрытия - отдельная.
+     */
+    @Override
+    public synchronized String readContent(AbbreviatedObjectId blobId) throws IOException {
+        if (blobId == null || ObjectId.zeroId().equals(blobId.toObjectId()))
+            return "";
+        if (closed)
+            return detachedSource.readContent(blobId);
+        return session.readContent(blobId.toObjectId());
+    }
+
+    @Override
+    public synchronized void close() {
+        closed = true;
+        next = null;
+        current = null;
+        currentOld = null;
+        pending = Collections.emptyList();
+        formatter.close();
+        revWalk.dispose();
+        session.close();
+    }
+
+    /**
+     * Источник содержимого записей истории, хранящий только репозиторий.
+     * Каждое обращение открывает и закрывает собственную сессию чтения.
+     */
+    private static class RepositorySource implements N2oGitHistory.Source {
+        private final Repository repo;
+
+        RepositorySource(Repository repo) {
+            this.repo = repo;
+        }
+
+        @Override
+        public String readContent(AbbreviatedObjectId blobId) throws IOException {
+            if (blobId == null || ObjectId.zeroId().equals(blobId.toObjectId()))
+                return "";
+            try (N2oGitReadSession readSession = new N2oGitReadSession(repo)) {
+                return readSession.readContent(blobId.toObjectId());
+            }
+        }
+
+        @Override
+        public String formatDiff(DiffEntry entry) throws IOException {
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            try (DiffFormatter diffFormatter = new DiffFormatter(out)) {
+                diffFormatter.setRepository(repo);
+                diffFormatter.format(entry);
+                diffFormatter.flush();
+            }
+            return new String(out.toByteArray(), DEFAULT_FILE_ENCODING);
+        }
+    }
+}
@@ -0,0 +1,365 @@
+package net.n2oapp.framework.config.audit.git.core;
+
+import org.eclipse.jgit.lib.ObjectId;
+import org.eclipse.jgit.lib.Repository;
+import org.eclipse.jgit.revwalk.RevCommit;
+import org.eclipse.jgit.revwalk.RevSort;
+import org.eclipse.jgit.revwalk.RevWalk;
+import org.eclipse.jgit.treewalk.TreeWalk;
+import org.eclipse.jgit.treewalk.filter.TreeFilter;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.*;
+import java.nio.file.Files;
+import java.util.*;
+
+import static net.n2oapp.framework.config.audit.git.util.N2oGitConstant.DEFAULT_FILE_ENCODING;
+
+/**
+ * <p>Индекс изменений файлов: для каждого коммита, достижимого из вершины ветки, хранятся его родители
+ * и пути файлов, которые он изменил.</p>
+ * <p>Коммит считается изменившим файл, если содержимое файла в нем отличается от содержимого во всех его родителях
+ * (для коммита без родителей - если файл есть в коммите). Для коммита слияния дополнительно хранится,
+ * с каким родителем совпадает файл, если не с первым, и в каких родителях файла нет.</p>
+ * <p>Коммиты файла выбираются обходом графа в памяти с упрощением истории, как в {@code git log -- path}:
+ * если файл в слиянии совпадает с одним из родителей, обход идет только по этому родителю,
+ * поэтому изменения из отброшенной при слиянии ветки в историю не попадают; история родителей слияния,
+ * в которых файла нет, не просматривается. Порядок коммитов - по убыванию времени.</p>
+ * <p>Индекс хранится в каталоге .git в виде журнала: строка версии формата,
+ * строка коммита({@code id, время, родители через запятую, пути через табуляцию})
+ * и строка вершины ветки({@code T, id}) после каждого обновления. При обновлении дописываются только новые коммиты.
+ * Запись вершины ветки пишется последней: строки после последней полной записи вершины(прерванная запись)
+ * при загрузке отбрасываются.
+ * Если прежняя вершина не является предком новой, журнал поврежден или записан в другом формате,
+ * индекс строится заново.</p>
+ * <p>Если индекс уже обновлен дальше запрошенной вершины(читатель работает со старым снимком), индекс не изменяется,
+ * а обход начинается с запрошенной вершины.</p>
+ */
+public class N2oGitPathIndex {
+    private static Logger logger = LoggerFactory.getLogger(N2oGitPathIndex.class);
+    private static final String VERSION_RECORD = "V";
+    private static final String VERSION = "2";
+    private static final String TIP_RECORD = "T";
+    private static final String SEPARATOR = "\t";
+    private static final String PARENT_SEPARATOR = ",";
+    /**
+     * Признак записи слияния: путь с начальным "/" не может быть путем файла в git
+     */
+    private static final char MERGE_ENTRY = '/';
+    /**
+     * Файл совпадает с родителем слияния
+     */
+    private static final char SAME_PARENT = '=';
+    /**
+     * Файла нет в родителе слияния
+     */
+    private static final char ABSENT_PARENT = '+';
+    private static final ObjectId[] NO_PARENTS = new ObjectId[0];
+    private final Repository repo;
+    private final File file;
+    private final Map<ObjectId, Node> nodes = new HashMap<>();
+    private ObjectId tipId;
+    private boolean loaded;
+
+    /**
+     * @param repo git репозиторий
+     * @param file файл индекса
+     */
+    public N2oGitPathIndex(Repository repo, File file) {
+        this.repo = repo;
+        this.file = file;
+    }
+
+    /**
+     * Возвращает коммиты, изменявшие файл
+     *
+     * @param path  локальный путь к файлу
+     * @param tipId вершина ветки, до которой должен быть обновлен индекс
+     * @return идентификаторы коммитов, начиная с последнего
+     * @throws IOException ошибка чтения репозитория или файла индекса
+     */
+    public synchronized List<ObjectId> retrieveCommits(String path, ObjectId tipId) throws IOException {
+        load();
+        if (tipId == null || !nodes.containsKey(tipId))
+            update(tipId);
+        Node tip = nodes.get(tipId != null ? tipId : this.tipId);
+        if (tip == null)
+            return Collections.emptyList();
+        List<ObjectId> commitIds = new ArrayList<>();
+        //очередь по убыванию времени коммита, при равном времени - в порядке добавления
+        PriorityQueue<Pending> queue = new PriorityQueue<>();
+        Set<ObjectId> seen = new HashSet<>();
+        Set<ObjectId> cut = new HashSet<>();
+        queue.add(new Pending(tip, 0));
+        seen.add(tip.commitId);
+        int order = 1;
+        while (!queue.isEmpty()) {
+            Node node = queue.poll().node;
+            //у коммита с отсеченной историей файла нет, он не считается изменившим файл
+            boolean isCut = cut.contains(node.commitId);
+            ObjectId[] parents = isCut ? NO_PARENTS : node.parents;
+            boolean changed = !isCut && node.paths.contains(path);
+            //история родителя слияния, в котором файла нет, не просматривается
+            if (parents.length > 1) {
+                for (int parent : node.absentParents.getOrDefault(path, Collections.emptyList()))
+                    cut.add(parents[parent]);
+            }
+            List<ObjectId> follow;
+            if (parents.length <= 1 || changed)
+                follow = Arrays.asList(parents);
+            else
+                follow = Collections.singletonList(parents[node.sameParents.getOrDefault(path, 0)]);
+            if (changed)
+                commitIds.add(node.commitId);
+            for (ObjectId parentId : follow) {
+                Node parent = nodes.get(parentId);
+                if (parent != null && seen.add(parentId))
+                    queue.add(new Pending(parent, order++));
+            }
+        }
+        return commitIds;
+    }
+
+    /**
+     * Дописывает в индекс коммиты, достижимые из новой вершины ветки и не достижимые из прежней
+     *
+     * @param newTipId новая вершина ветки
+     * @throws IOException ошибка чтения репозитория или записи файла индекса
+     */
+    public synchronized void update(ObjectId newTipId) throws IOException {
+        load();
+        if (newTipId == null || newTipId.equals(tipId))
+            return;
+        try (N2oGitReadSession session = new N2oGitReadSession(repo)) {
+            RevWalk revWalk = session.getRevWalk();
+            TreeWalk treeWalk = session.getTreeWalk();
+            RevCommit newTip = revWalk.parseCommit(newTipId);
+            RevCommit oldTip = tipId != null && session.getReader().has(tipId) ? revWalk.parseCommit(tipId) : null;
+            if (tipId != null && (oldTip == null || !revWalk.isMergedInto(oldTip, newTip))) {
+                logger.info("Config audit path index is out of date, rebuilding.");
+                clear();
+                oldTip = null;
+            }
+            revWalk.reset();
+            revWalk.sort(RevSort.TOPO);
+            revWalk.markStart(newTip);
+            if (oldTip != null)
+                revWalk.markUninteresting(oldTip);
+            List<RevCommit> commits = new ArrayList<>();
+            for (RevCommit commit : revWalk) {
+                if (!nodes.containsKey(commit))
+                    commits.add(commit);
+            }
+            treeWalk.setRecursive(true);
+            boolean created = !file.exists() || file.length() == 0;
+            try (Writer writer = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(file, true), DEFAULT_FILE_ENCODING))) {
+                if (created)
+                    writer.write(VERSION_RECORD + SEPARATOR + VERSION + "\n");
+                for (int i = commits.size() - 1; i >= 0; i--) {
+                    Node node = createNode(revWalk, treeWalk, commits.get(i));
+                    add(node);
+                    writer.write(node.toRecord());
+                }
+                writer.write(TIP_RECORD + SEPARATOR + newTip.getName() + "\n");
+            }
+            tipId = newTip.copy();
+        }
+    }
+
+    /**
+     * Строит индекс заново
+     *
+     * @param newTipId вершина ветки
+     * @throws IOException ошибка чтения репозитория или записи файла индекса
+     */
+    public synchronized void rebuild(ObjectId newTipId) throws IOException {
+        loaded = true;
+        clear();
+        update(newTipId);
+    }
+
+    /**
+     * Сравнивает дерево коммита с деревьями родителей
+     */
+    private Node createNode(RevWalk revWalk, TreeWalk treeWalk, RevCommit commit) throws IOException {
+        int parentCount = commit.getParentCount();
+        ObjectId[] parents = new ObjectId[parentCount];
+        ObjectId[] trees = new ObjectId[parentCount + 1];
+        for (int i = 0; i < parentCount; i++) {
+            parents[i] = commit.getParent(i).copy();
+            trees[i] = revWalk.parseCommit(commit.getParent(i)).getTree();
+        }
+        trees[parentCount] = commit.getTree();
+        treeWalk.reset(trees);
+        treeWalk.setFilter(parentCount == 0 ? TreeFilter.ALL : TreeFilter.ANY_DIFF);
+        Node node = new Node(commit.copy(), commit.getCommitTime(), parents);
+        while (treeWalk.next()) {
+            String path = treeWalk.getPathString();
+            int same = -1;
+            for (int i = 0; i < parentCount && same < 0; i++) {
+                if (treeWalk.getRawMode(i) == treeWalk.getRawMode(parentCount) && treeWalk.idEqual(i, parentCount))
+                    same = i;
+                else if (parentCount > 1 && treeWalk.getRawMode(i) == 0)
+                    node.absentParents.computeIfAbsent(path, p -> new ArrayList<>()).add(i);
+            }
+            if (same > 0)
+                node.sameParents.put(path, same);
+            else if (same < 0)
+                node.paths.add(path);
+        }
+        return node;
+    }
+
+    private void add(Node node) {
+        nodes.putIfAbsent(node.commitId, node);
+    }
+
+    private void load() throws IOException {
+        if (loaded)
+            return;
+        loaded = true;
+        if (!file.exists() || file.length() == 0)
+            return;
+        String journal = new String(Files.readAllBytes(file.toPath()), DEFAULT_FILE_ENCODING);
+        int committed;
+        try {
+            int start = journal.indexOf('\n') + 1;
+            if (!(VERSION_RECORD + SEPARATOR + VERSION).equals(journal.substring(0, Math.max(start - 1, 0)))) {
+                logger.info("Config audit path index has an old format, rebuilding.");
+                clear();
+                return;
+            }
+            committed = start;
+            List<String[]> pending = new ArrayList<>();
+            int end;
+            while ((end = journal.indexOf('\n', start)) >= 0) {
+                String[] fields = journal.substring(start, end).split(SEPARATOR);
+                start = end + 1;
+                if (!TIP_RECORD.equals(fields[0])) {
+                    pending.add(fields);
+                    continue;
+                }
+                ObjectId recordTipId = ObjectId.fromString(fields[1]);
+                for (String[] commit : pending)
+                    add(Node.fromRecord(commit));
+                pending.clear();
+                tipId = recordTipId;
+                committed = start;
+            }
+        } catch (RuntimeException e) {
+            logger.warn("Config audit path index is corrupted, rebuilding.", e);
+            clear();
+            return;
+        }
+        if (committed < journal.length())
+            truncate(journal.substring(0, committed).getBytes(DEFAULT_FILE_ENCODING).length);
+    }
+
+    /**
+     * Отбрасывает незавершенную запись журнала(строки после последней записи вершины ветки)
+     */
+    private void truncate(long length) throws IOException {
+        logger.warn("Config audit path index has an incomplete record, discarding it.");
+        try (RandomAccessFile journal = new RandomAccessFile(file, "rw")) {
+            journal.setLength(length);
+        }
+    }
+
+    private void clear() throws IOException {
+        nodes.clear();
+        tipId = null;
+        if (file.exists() && !file.delete())
+            throw new IOException("Config audit path index " + file + " can not be deleted.");
+    }
+
+    /**
+     * Коммит в индексе
+     */
+    private static class Node {
+        private final ObjectId commitId;
+        private final int commitTime;
+        private final ObjectId[] parents;
+        /**
+         * Файлы, измененные коммитом
+         */
+        private final Set<String> paths = new TreeSet<>();
+        /**
+         * Файлы слияния, совпадающие с родителем, отличным от первого: путь - номер родителя
+         */
+        private final Map<String, Integer> sameParents = new TreeMap<>();
+        /**
+         * Файлы слияния, отсутствующие в родителях, которые предшествуют совпадающему родителю: путь - номера родителей
+         */
+        private final Map<String, List<Integer>> absentParents = new TreeMap<>();
+
+        private Node(ObjectId commitId, int commitTime, ObjectId[] parents) {
+            this.commitId = commitId;
+            this.commitTime = commitTime;
+            this.parents = parents;
+        }
+
+        private String toRecord() {
+            StringBuilder record = new StringBuilder(commitId.getName()).append(SEPARATOR).append(commitTime).append(SEPARATOR);
+            for (int i = 0; i < parents.length; i++)
+                record.append(i > 0 ? PARENT_SEPARATOR : "").append(parents[i].getName());
+            for (String path : paths)
+                record.append(SEPARATOR).append(path);
+            sameParents.forEach((path, parent) ->
+                    record.append(SEPARATOR).append(MERGE_ENTRY).append(SAME_PARENT).append(parent).append(MERGE_ENTRY).append(path));
+            absentParents.forEach((path, absent) -> absent.forEach(parent ->
+                    record.append(SEPARATOR).append(MERGE_ENTRY).append(ABSENT_PARENT).append(parent).append(MERGE_ENTRY).append(path)));
+            return record.append("\n").toString();
+        }
+
+        private static Node fromRecord(String[] fields) {
+            ObjectId[] parents = NO_PARENTS;
+            if (fields.length > 2 && !fields[2].isEmpty()) {
+                String[] parentNames = fields[2].split(PARENT_SEPARATOR);
+                parents = new ObjectId[parentNames.length];
+                for (int i = 0; i < parentNames.length; i++)
+                    parents[i] = ObjectId.fromString(parentNames[i]);
+            }
+            Node node = new Node(ObjectId.fromString(fields[0]), Integer.parseInt(fields[1]), parents);
+            for (int i = 3; i < fields.length; i++) {
+                String entry = fields[i];
+                if (entry.charAt(0) != MERGE_ENTRY) {
+                    node.paths.add(entry);
+                    continue;
+                }
+                int pathStart = entry.indexOf(MERGE_ENTRY, 1);
+                int parent = Integer.parseInt(entry.substring(2, pathStart));
+                if (parent >= parents.length)
+                    throw new IllegalStateException("Config audit path index record " + fields[0] + " has no parent " + parent);
+                String path = entry.substring(pathStart + 1);
+                if (entry.charAt(1) == SAME_PARENT)
+                    node.sameParents.put(path, parent);
+                else if (entry.charAt(1) == ABSENT_PARENT)
+                    node.absentParents.computeIfAbsent(path, p -> new ArrayList<>()).add(parent);
+                else
+                    throw new IllegalStateException("Config audit path index record " + fields[0] + " has unknown entry " + entry);
+            }
+            return node;
+        }
+    }
+
+    /**
+     * Коммит в очереди обхода
+     */
+    private static class Pending implements Comparable<Pending> {
+        private final Node node;
+        private final int order;
+
+        private Pending(Node node, int order) {
+            this.node = node;
+            this.order = order;
+        }
+
+        @Override
+        public int compareTo(Pending other) {
+            if (node.commitTime != other.node.commitTime)
+                return Integer.compare(other.node.commitTime, node.commitTime);
+            return Integer.compare(order, other.order);
+        }
+    }
+}
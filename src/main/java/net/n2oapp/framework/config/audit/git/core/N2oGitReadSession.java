@@ -0,0 +1,187 @@
+package net.n2oapp.framework.config.audit.git.core;
+
+import org.eclipse.jgit.lib.*;
+import org.eclipse.jgit.revwalk.RevCommit;
+import org.eclipse.jgit.revwalk.RevWalk;
+import org.eclipse.jgit.treewalk.TreeWalk;
+import org.eclipse.jgit.treewalk.filter.PathFilter;
+import org.eclipse.jgit.treewalk.filter.TreeFilter;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static net.n2oapp.framework.config.audit.git.util.N2oGitConstant.DEFAULT_FILE_ENCODING;
+
+/**
+ * <p>Сессия чтения репозитория.</p>
+ * <p>Владеет одним {@link ObjectReader}, {@link RevWalk} и {@link TreeWalk} создаются по требованию
+ * и переиспользуются всеми операциями сессии. Сессия не потокобезопасна и должна закрываться после использования
+ * (try-with-resources), при закрытии освобождаются обходы и {@link ObjectReader}.</p>
+ * <p>Количество открытых сессий доступно через {@link #getOpenCount()}, незакрытые сессии видны по его росту.</p>
+ */
+public class N2oGitReadSession implements AutoCloseable {
+    private static final AtomicInteger openCount = new AtomicInteger();
+    private static final AtomicLong totalCount = new AtomicLong();
+    private final Repository repo;
+    private final ObjectReader reader;
+    private RevWalk revWalk;
+    private TreeWalk treeWalk;
+    private boolean closed;
+
+    /**
+     * @param repo git репозиторий
+     */
+    public N2oGitReadSession(Repository repo) {
+        this.repo = repo;
+        this.reader = repo.newObjectReader();
+        openCount.incrementAndGet();
+        totalCount.incrementAndGet();
+    }
+
+    public Repository getRepository() {
+        return repo;
+    }
+
+    public ObjectReader getReader() {
+        return reader;
+    }
+
+    /**
+     * Возвращает обход коммитов сессии.
+     * Разобранные коммиты сохраняются между вызовами, перед новым обходом вызывается {@link RevWalk#reset()}.
+     *
+     * @return обход коммитов
+     */
+    public RevWalk getRevWalk() {
+        if (revWalk == null)
+            revWalk = new RevWalk(reader);
+        return revWalk;
+    }
+
+    /**
+     * Возвращает обход деревьев сессии без деревьев, фильтра и рекурсии
+     *
+     * @return обход деревьев
+     */
+    public TreeWalk getTreeWalk() {
+        if (treeWalk == null)
+            treeWalk = new TreeWalk(reader);
+        treeWalk.reset();
+        treeWalk.setFilter(TreeFilter.ALL);
+        treeWalk.setRecursive(false);
+        return treeWalk;
+    }
+
+    public RevCommit parseCommit(AnyObjectId commitId) throws IOException {
+        return getRevWalk().parseCommit(commitId);
+    }
+
+    /**
+     * Проверяет, что коммит достижим из другого коммита.
+     * После проверки обход сессии сбрасывается и может использоваться с другими фильтрами.
+     *
+     * @param baseId коммит
+     * @param tipId  коммит, из которого проверяется достижимость
+     * @return true - коммит достижим
+     * @throws IOException ошибка чтения репозитория
+     */
+    public boolean isMergedInto(AnyObjectId baseId, AnyObjectId tipId) throws IOException {
+        RevWalk walk = getRevWalk();
+        walk.reset();
+        try {
+            return walk.isMergedInto(walk.parseCommit(baseId), walk.parseCommit(tipId));
+        } finally {
+            walk.reset();
+        }
+    }
+
+    /**
+     * Находит содержимое файла в дереве коммита
+     *
+     * @param commitId  коммит
+     * @param localPath локальный путь к файлу
+     * @return идентификатор содержимого, null - файла нет
+     * @throws IOException ошибка чтения репозитория
+     */
+    public ObjectId findBlob(AnyObjectId commitId, String localPath) throws IOException {
+        return findBlobInTree(parseCommit(commitId).getTree(), localPath);
+    }
+
+    /**
+     * Находит содержимое файла в дереве
+     *
+     * @param treeId    дерево
+     * @param localPath локальный путь к файлу
+     * @return идентификатор содержимого, null - файла нет
+     * @throws IOException ошибка чтения репозитория
+     */
+    public ObjectId findBlobInTree(AnyObjectId treeId, String localPath) throws IOException {
+        TreeWalk walk = getTreeWalk();
+        walk.addTree(treeId);
+        walk.setRecursive(true);
+        walk.setFilter(PathFilter.create(localPath));
+        while (walk.next()) {
+            if (localPath.equals(walk.getPathString()))
+                return walk.getObjectId(0);
+        }
+        return null;
+    }
+
+    public ObjectLoader open(AnyObjectId blobId) throws IOException {
+        return reader.open(blobId, Constants.OBJ_BLOB);
+    }
+
+    public InputStream openStream(AnyObjectId blobId) throws IOException {
+        return open(blobId).openStream();
+    }
+
+    /**
+     * @param blobId идентификатор содержимого
+     * @return содержимое, пустая строка - blobId равен null
+     * @throws IOException ошибка чтения репозитория
+     */
+    public String readContent(AnyObjectId blobId) throws IOException {
+        if (blobId == null)
+            return "";
+        return new String(open(blobId).getCachedBytes(Integer.MAX_VALUE), DEFAULT_FILE_ENCODING);
+    }
+
+    /**
+     * @param commitId  коммит
+     * @param localPath локальный путь к файлу
+     * @return содержимое файла в коммите, пустая строка - файла нет
+     * @throws IOException ошибка чтения репозитория
+     */
+    public String readContent(AnyObjectId commitId, String localPath) throws IOException {
+        return readContent(findBlob(commitId, localPath));
+    }
+
+    @Override
+    public void close() {
+        if (closed)
+            return;
+        closed = true;
+        if (revWalk != null)
+            revWalk.close();
+        if (treeWalk != null)
+            treeWalk.close();
+        reader.close();
+        openCount.decrementAndGet();
+    }
+
+    /**
+     * @return количество открытых сессий
+     */
+    public static int getOpenCount() {
+        return openCount.get();
+    }
+
+    /**
+     * @return количество сессий, открытых с запуска приложения
+     */
+    public static long getTotalCount() {
+        return totalCount.get();
+    }
+}
@@ -0,0 +1,406 @@
+package net.n2oapp.framework.config.audit.git.core;
+
+import net.n2oapp.framework.api.exception.N2oException;
+import org.apache.commons.io.IOUtils;
+import org.eclipse.jgit.diff.RawText;
+import org.eclipse.jgit.dircache.DirCache;
+import org.eclipse.jgit.dircache.DirCacheBuilder;
+import org.eclipse.jgit.dircache.DirCacheEditor;
+import org.eclipse.jgit.dircache.DirCacheEntry;
+import org.eclipse.jgit.lib.*;
+import org.eclipse.jgit.revwalk.RevCommit;
+import org.eclipse.jgit.revwalk.RevWalk;
+import org.eclipse.jgit.treewalk.WorkingTreeOptions;
+import org.eclipse.jgit.util.TemporaryBuffer;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.util.HashMap;
+import java.util.Map;
+
+import static net.n2oapp.framework.config.audit.git.util.N2oGitConstant.Author.AUTHOR_EMAIL;
+
+/**
+ * <p>Построение коммита в памяти, без изменения рабочего каталога и git индекса.</p>
+ * <p>Содержимое файлов записывается сразу в базу объектов, дерево собирается в {@link DirCache} в памяти,
+ * ветка переводится на новый коммит через {@link RefUpdate}.</p>
+ * <p>Не должен использоваться для коммита в текущую ветку: для нее дерево записывается через {@link #writeTree()}
+ * и коммитится через {@link N2oGitCore#commitTree}, который обновляет git индекс и рабочий каталог,
+ * либо коммитится оптимистично через {@link N2oGitCore#commitOptimistic}.</p>
+ */
+public class N2oGitTreeEditor implements AutoCloseable {
+    private static final int BUFFER_LIMIT = 1024 * 1024;
+    private static final int BINARY_CHECK_LENGTH = 8000;
+    private final Repository repo;
+    private final String branchName;
+    private final ObjectInserter inserter;
+    private final ObjectInserter.Formatter formatter = new ObjectInserter.Formatter();
+    private final ObjectReader reader;
+    private final ObjectId baseCommitId;
+    private final ObjectId baseTreeId;
+    private final DirCache dirCache;
+    private final DirCacheEditor editor;
+    private final boolean canonicalLineEnd;
+    private final Map<String, DirCacheEntry> fileStats = new HashMap<>();
+
+    /**
+     * @param repo       git репозиторий
+     * @param branchName ветка, на основе последнего коммита которой строится новый коммит
+     * @throws IOException ошибка чтения репозитория
+     */
+    public N2oGitTreeEditor(Repository repo, String branchName) throws IOException {
+        this.repo = repo;
+        this.branchName = branchName;
+        this.inserter = repo.newObjectInserter();
+        this.reader = repo.newObjectReader();
+        Ref ref = repo.exactRef(Constants.R_HEADS + branchName);
+        this.baseCommitId = ref != null ? ref.getObjectId() : null;
+        this.dirCache = DirCache.newInCore();
+        DirCacheBuilder builder = dirCache.builder();
+        if (baseCommitId != null) {
+            try (RevWalk revWalk = new RevWalk(reader)) {
+                RevCommit baseCommit = revWalk.parseCommit(baseCommitId);
+                baseTreeId = baseCommit.getTree().getId();
+            }
+            builder.addTree(new byte[0], DirCacheEntry.STAGE_0, reader, baseTreeId);
+        } else {
+            baseTreeId = null;
+        }
+        builder.finish();
+        this.editor = dirCache.editor();
+        this.canonicalLineEnd = repo.getConfig().get(WorkingTreeOptions.KEY).getAutoCRLF() != CoreConfig.AutoCRLF.FALSE;
+    }
+
+    /**
+     * Записывает содержимое файла в базу объектов и в дерево коммита
+     *
+     * @param path    локальный путь к файлу
+     * @param content содержимое файла
+     * @return идентификатор содержимого
+     * @throws IOException ошибка записи в базу объектов
+     */
+    public ObjectId put(String path, byte[] content) throws IOException {
+        ObjectId blobId = inserter.insert(Constants.OBJ_BLOB, canonicalize(content));
+        put(path, blobId);
+        return blobId;
+    }
+
+    /**
+     * Записывает содержимое файла рабочего каталога в базу объектов и в дерево коммита.
+     * Размер и время изменения файла запоминаются до чтения содержимого({@link #getFileStat(String)}).
+     *
+     * @param path локальный путь к файлу
+     * @param file файл рабочего каталога
+     * @return идентификатор содержимого
+     * @throws IOException ошибка чтения файла или записи в базу объектов
+     */
+    public ObjectId put(String path, File file) throws IOException {
+        DirCacheEntry stat = new DirCacheEntry(path);
+        stat.setLength(file.length());
+        stat.setLastModified(file.lastModified());
+        ObjectId blobId = put(path, Files.readAllBytes(file.toPath()));
+        fileStats.put(path, stat);
+        return blobId;
+    }
+
+    /**
+     * <p>Потоково записывает содержимое файла в базу объектов и в дерево коммита, если оно отличается от базового дерева.</p>
+     * <p>Содержимое копируется во временный буфер с приведением концов строк, который при превышении {@link #BUFFER_LIMIT}
+     * сбрасывается в файл в каталоге .git. Идентификатор вычисляется по буферу до записи,
+     * поэтому неизмененное содержимое в базу объектов не пишется.</p>
+     *
+     * @param path    локальный путь к файлу
+     * @param content поток с содержимым файла
+     * @return true - содержимое записано в дерево коммита, false - содержимое не изменилось
+     * @throws IOException ошибка чтения потока или записи в базу объектов
+     */
+    public boolean update(String path, InputStream content) throws IOException {
+        TemporaryBuffer buffer = buffer(content);
+        try {
+            if (idFor(buffer).equals(getBaseId(path)))
+                return false;
+            put(path, insert(buffer));
+            return true;
+        } finally {
+            buffer.destroy();
+        }
+    }
+
+    /**
+     * Вычисляет идентификатор содержимого файла с приведенными концами строк, не записывая его в базу объектов
+     *
+     * @param content поток с содержимым файла
+     * @return идентификатор содержимого
+     * @throws IOException ошибка чтения потока
+     */
+    public ObjectId idFor(InputStream content) throws IOException {
+        TemporaryBuffer buffer = buffer(content);
+        try {
+            return idFor(buffer);
+        } finally {
+            buffer.destroy();
+        }
+    }
+
+    /**
+     * Возвращает идентификатор содержимого файла в базовом дереве
+     *
+     * @param path локальный путь к файлу
+     * @return идентификатор содержимого, null - файла нет в базовом дереве
+     */
+    public ObjectId getBaseId(String path) {
+        DirCacheEntry entry = dirCache.getEntry(path);
+        return entry != null ? entry.getObjectId() : null;
+    }
+
+    /**
+     * Записывает содержимое файла в базу объектов и в дерево коммита
+     *
+     * @param path    локальный путь к файлу
+     * @param content поток с содержимым файла
+     * @return идентификатор содержимого
+     * @throws IOException ошибка чтения потока или записи в базу объектов
+     */
+    public ObjectId put(String path, InputStream content) throws IOException {
+        TemporaryBuffer buffer = buffer(content);
+        try {
+            ObjectId blobId = insert(buffer);
+            put(path, blobId);
+            return blobId;
+        } finally {
+            buffer.destroy();
+        }
+    }
+
+    private TemporaryBuffer buffer(InputStream content) throws IOException {
+        TemporaryBuffer buffer = new TemporaryBuffer.LocalFile(repo.getDirectory(), BUFFER_LIMIT);
+        try {
+            try {
+                copyCanonical(content, buffer);
+            } finally {
+                buffer.close();
+            }
+            return buffer;
+        } catch (IOException e) {
+            buffer.destroy();
+            throw e;
+        }
+    }
+
+    private ObjectId idFor(TemporaryBuffer buffer) throws IOException {
+        try (InputStream in = buffer.openInputStream()) {
+            return formatter.idFor(Constants.OBJ_BLOB, buffer.length(), in);
+        }
+    }
+
+    private ObjectId insert(TemporaryBuffer buffer) throws IOException {
+        try (InputStream in = buffer.openInputStream()) {
+            return inserter.insert(Constants.OBJ_BLOB, buffer.length(), in);
+        }
+    }
+
+    /**
+     * Копирует содержимое, заменяя CRLF на LF, если концы строк приводятся и начало содержимого не двоичное
+     */
+    private void copyCanonical(InputStream content, OutputStream out) throws IOException {
+        byte[] buffer = new byte[BINARY_CHECK_LENGTH];
+        int length = IOUtils.read(content, buffer);
+        if (!canonicalLineEnd || RawText.isBinary(buffer, length)) {
+            out.write(buffer, 0, length);
+            IOUtils.copyLarge(content, out, buffer);
+            return;
+        }
+        boolean cr = false;
+        while (length > 0) {
+            int start = 0;
+            for (int i = 0; i < length; i++) {
+                if (cr && buffer[i] != '\n')
+                    out.write('\r');
+                cr = buffer[i] == '\r';
+                if (cr) {
+                    out.write(buffer, start, i - start);
+                    start = i + 1;
+                }
+            }
+            out.write(buffer, start, length - start);
+            length = IOUtils.read(content, buffer);
+        }
+        if (cr)
+            out.write('\r');
+    }
+
+    /**
+     * Записывает уже существующее в базе объектов содержимое в дерево коммита
+     *
+     * @param path   локальный путь к файлу
+     * @param blobId идентификатор содержимого
+     */
+    public void put(String path, ObjectId blobId) {
+        editor.add(new DirCacheEditor.PathEdit(path) {
+            @Override
+            public void apply(DirCacheEntry ent) {
+                ent.setFileMode(FileMode.REGULAR_FILE);
+                ent.setObjectId(blobId);
+            }
+        });
+    }
+
+    /**
+     * Удаляет файл из дерева коммита
+     *
+     * @param path локальный путь к файлу
+     */
+    public void remove(String path) {
+        editor.add(new DirCacheEditor.DeletePath(path));
+    }
+
+    /**
+     * Создает коммит и переводит на него ветку.
+     * Если дерево не изменилось, коммит не создается.
+     *
+     * @param message      сообщение коммита
+     * @param author       автор коммита
+     * @param extraParents дополнительные родители коммита(для коммита слияния)
+     * @return идентификатор созданного коммита, null - изменений нет
+     * @throws IOException ошибка записи в репозиторий
+     */
+    public ObjectId commit(String message, String author, ObjectId... extraParents) throws IOException {
+        ObjectId treeId = writeTree();
+        if (extraParents.length == 0 && treeId.equals(baseTreeId))
+            return null;
+        ObjectId commitId = insertCommit(treeId, message, author, extraParents);
+        RefUpdate.Result result = updateRef(commitId, message);
+        if (!isUpdated(result))
+            throw new N2oException("Config audit update branch " + branchName + " error: " + result);
+        return commitId;
+    }
+
+    /**
+     * Записывает коммит в базу объектов, не переводя на него ветку.
+     * Родителем коммита становится последний коммит ветки на момент создания построителя.
+     *
+     * @param treeId       дерево коммита
+     * @param message      сообщение коммита
+     * @param author       автор коммита
+     * @param extraParents дополнительные родители коммита(для коммита слияния)
+     * @return идентификатор коммита
+     * @throws IOException ошибка записи в базу объектов
+     */
+    public ObjectId insertCommit(ObjectId treeId, String message, String author, ObjectId... extraParents) throws IOException {
+        PersonIdent personIdent = new PersonIdent(author == null ? "undefined" : author, AUTHOR_EMAIL);
+        CommitBuilder commitBuilder = new CommitBuilder();
+        commitBuilder.setTreeId(treeId);
+        if (baseCommitId != null)
+            commitBuilder.addParentId(baseCommitId);
+        for (ObjectId parent : extraParents)
+            commitBuilder.addParentId(parent);
+        commitBuilder.setAuthor(personIdent);
+        commitBuilder.setCommitter(personIdent);
+        commitBuilder.setMessage(message);
+        ObjectId commitId = inserter.insert(commitBuilder);
+        inserter.flush();
+        return commitId;
+    }
+
+    /**
+     * Записывает дерево коммита в базу объектов, не создавая коммит
+     *
+     * @return идентификатор дерева
+     * @throws IOException ошибка записи в базу объектов
+     */
+    public ObjectId writeTree() throws IOException {
+        editor.finish();
+        ObjectId treeId = dirCache.writeTree(inserter);
+        inserter.flush();
+        return treeId;
+    }
+
+    /**
+     * Переводит ветку на коммит, только если она все еще указывает на базовый коммит
+     *
+     * @param commitId идентификатор коммита
+     * @param message  сообщение коммита для журнала ссылок
+     * @return результат обновления ветки, {@link RefUpdate.Result#LOCK_FAILURE} - ветка уже переведена на другой коммит
+     * @throws IOException ошибка записи ссылки
+     */
+    public RefUpdate.Result updateRef(ObjectId commitId, String message) throws IOException {
+        RefUpdate refUpdate = repo.updateRef(Constants.R_HEADS + branchName);
+        refUpdate.setNewObjectId(commitId);
+        refUpdate.setExpectedOldObjectId(baseCommitId != null ? baseCommitId : ObjectId.zeroId());
+        refUpdate.setRefLogMessage("commit: " + message, false);
+        return refUpdate.update();
+    }
+
+    /**
+     * @param result результат обновления ветки
+     * @return true - ветка переведена на новый коммит
+     */
+    public static boolean isUpdated(RefUpdate.Result result) {
+        switch (result) {
+            case NEW:
+            case FAST_FORWARD:
+            case FORCED:
+                return true;
+            default:
+                return false;
+        }
+    }
+
+    private byte[] canonicalize(byte[] content) {
+        if (!canonicalLineEnd || RawText.isBinary(content))
+            return content;
+        ByteArrayOutputStream out = new ByteArrayOutputStream(content.length);
+        for (int i = 0; i < content.length; i++) {
+            if (content[i] == '\r' && i + 1 < content.length && content[i + 1] == '\n')
+                continue;
+            out.write(content[i]);
+        }
+        return out.toByteArray();
+    }
+
+    public ObjectId getBaseCommitId() {
+        return baseCommitId;
+    }
+
+    public ObjectId getBaseTreeId() {
+        return baseTreeId;
+    }
+
+    public ObjectReader getReader() {
+        return reader;
+    }
+
+    /**
+     * Возвращает размер и время изменения файла, прочитанного через {@link #put(String, File)}
+     *
+     * @param path локальный путь к файлу
+     * @return запись с размером и временем изменения, null - файл не читался из рабочего каталога
+     */
+    public DirCacheEntry getFileStat(String path) {
+        return fileStats.get(path);
+    }
+
+    /**
+     * Изменение дерева коммита для оптимистичного коммита.
+     * При повторной попытке применяется к новому построителю, созданному от нового коммита ветки.
+     */
+    @FunctionalInterface
+    public interface Edit {
+        /**
+         * @param editor построитель коммита
+         * @return сообщение коммита, null - коммит не нужен
+         * @throws IOException ошибка чтения файлов или записи в базу объектов
+         */
+        String apply(N2oGitTreeEditor editor) throws IOException;
+    }
+
+    @Override
+    public void close() {
+        inserter.close();
+        reader.close();
+    }
+}
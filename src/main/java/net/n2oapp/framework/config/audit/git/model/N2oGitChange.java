@@ -0,0 +1,54 @@
+package net.n2oapp.framework.config.audit.git.model;
+
+import net.n2oapp.framework.config.register.InfoStatus;
+
+import java.io.File;
+
+/**
+ * Изменение файла конфигурации, ожидающее коммита в git репозиторий
+ */
+public class N2oGitChange {
+    private String localPath;
+    private String author;
+    private InfoStatus.Status status;
+    private boolean removed;
+    private File restoredFile;
+
+    public N2oGitChange(String localPath, String author, InfoStatus.Status status) {
+        this.localPath = localPath;
+        this.author = author;
+        this.status = status;
+    }
+
+    public N2oGitChange(String localPath, String author, InfoStatus.Status status, File restoredFile) {
+        this(localPath, author, status);
+        this.removed = true;
+        this.restoredFile = restoredFile;
+    }
+
+    public String getLocalPath() {
+        return localPath;
+    }
+
+    public String getAuthor() {
+        return author;
+    }
+
+    public InfoStatus.Status getStatus() {
+        return status;
+    }
+
+    /**
+     * @return true - файл удален, false - файл создан или изменен
+     */
+    public boolean isRemoved() {
+        return removed;
+    }
+
+    /**
+     * @return восстановленный из предка файл, который необходимо удалить после коммита
+     */
+    public File getRestoredFile() {
+        return restoredFile;
+    }
+}
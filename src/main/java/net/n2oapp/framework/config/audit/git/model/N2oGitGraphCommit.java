@@ -0,0 +1,57 @@
+package net.n2oapp.framework.config.audit.git.model;
+
+import java.util.Date;
+import java.util.List;
+
+/**
+ * <p>Коммит в графе коммитов.</p>
+ * <p>Линия - номер колонки, в которой рисуется коммит. Ребра графа строятся от коммита к его родителям,
+ * линия родителя берется из его записи.</p>
+ */
+public class N2oGitGraphCommit {
+    private String id;
+    private List<String> parents;
+    private int lane;
+    private String author;
+    private Date date;
+    private String message;
+
+    public N2oGitGraphCommit(String id, List<String> parents, int lane, String author, Date date, String message) {
+        this.id = id;
+        this.parents = parents;
+        this.lane = lane;
+        this.author = author;
+        this.date = date;
+        this.message = message;
+    }
+
+    public String getId() {
+        return id;
+    }
+
+    /**
+     * @return идентификаторы родителей, первым идет родитель той же ветки
+     */
+    public List<String> getParents() {
+        return parents;
+    }
+
+    /**
+     * @return номер линии, начиная с 0
+     */
+    public int getLane() {
+        return lane;
+    }
+
+    public String getAuthor() {
+        return author;
+    }
+
+    public Date getDate() {
+        return date;
+    }
+
+    public String getMessage() {
+        return message;
+    }
+}
@@ -0,0 +1,128 @@
+package net.n2oapp.framework.config.audit.git.model;
+
+import net.n2oapp.framework.config.register.audit.model.N2oConfigHistory;
+import org.eclipse.jgit.diff.DiffEntry;
+import org.eclipse.jgit.lib.AbbreviatedObjectId;
+
+import java.io.IOException;
+
+/**
+ * <p>Запись истории изменений файла с отложенной загрузкой.</p>
+ * <p>Хранит только идентификаторы содержимого, разница и содержимое версий файла
+ * читаются из репозитория при первом обращении.</p>
+ */
+public class N2oGitHistory extends N2oConfigHistory {
+    private final DiffEntry entry;
+    private final String commitDescription;
+    private final Source source;
+    private boolean diffLoaded;
+    private boolean contentLoaded;
+    private boolean previousContentLoaded;
+
+    /**
+     * @param entry             изменение файла в коммите
+     * @param commitDescription описание коммита, предшествующее разнице
+     * @param source            источник содержимого
+     */
+    public N2oGitHistory(DiffEntry entry, String commitDescription, Source source) {
+        this.entry = entry;
+        this.commitDescription = commitDescription;
+        this.source = source;
+    }
+
+    /**
+     * @return копия записи с теми же сведениями о коммите, разница и содержимое в которой еще не загружены
+     */
+    public N2oGitHistory copy() {
+        return copy(source);
+    }
+
+    /**
+     * @param source источник содержимого копии
+     * @return копия записи с другим источником содержимого, разница и содержимое в которой еще не загружены
+     */
+    public N2oGitHistory copy(Source source) {
+        N2oGitHistory copy = new N2oGitHistory(entry, commitDescription, source);
+        copy.setId(getId());
+        copy.setCode(getCode());
+        copy.setLocalPath(getLocalPath());
+        copy.setAuthor(getAuthor());
+        copy.setMessage(getMessage());
+        copy.setDate(getDate());
+        return copy;
+    }
+
+    public DiffEntry getEntry() {
+        return entry;
+    }
+
+    @Override
+    public synchronized String getDiff() {
+        if (!diffLoaded)
+            setDiff(commitDescription + "\n" + load(() -> source.formatDiff(entry)));
+        return super.getDiff();
+    }
+
+    @Override
+    public synchronized void setDiff(String diff) {
+        super.setDiff(diff);
+        diffLoaded = true;
+    }
+
+    @Override
+    public synchronized String getContent() {
+        if (!contentLoaded)
+            setContent(load(() -> source.readContent(entry.getNewId())));
+        return super.getContent();
+    }
+
+    @Override
+    public synchronized void setContent(String content) {
+        super.setContent(content);
+        contentLoaded = true;
+    }
+
+    @Override
+    public synchronized String getPreviousContent() {
+        if (!previousContentLoaded)
+            setPreviousContent(load(() -> source.readContent(entry.getOldId())));
+        return super.getPreviousContent();
+    }
+
+    @Override
+    public synchronized void setPreviousContent(String previousContent) {
+        super.setPreviousContent(previousContent);
+        previousContentLoaded = true;
+    }
+
+    private static String load(Loader loader) {
+        try {
+            return loader.load();
+        } catch (IOException e) {
+            throw new RuntimeException("Config audit history error.", e);
+        }
+    }
+
+    private interface Loader {
+        String load() throws IOException;
+    }
+
+    /**
+     * Источник содержимого записей истории
+     */
+    public interface Source {
+        /**
+         * @param blobId идентификатор содержимого
+         * @return содержимое, пустая строка - файл отсутствует
+         * @throws IOException ошибка чтения репозитория
+         */
+        String readContent(AbbreviatedObjectId blobId) throws IOException;
+
+        /**
+         * @param entry изменение файла
+         * @return разница в формате {@code git diff}
+         * @throws IOException ошибка чтения репозитория
+         */
+        String formatDiff(DiffEntry entry) throws IOException;
+    }
+}
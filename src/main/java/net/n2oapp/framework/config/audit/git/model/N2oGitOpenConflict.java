@@ -0,0 +1,34 @@
+package net.n2oapp.framework.config.audit.git.model;
+
+/**
+ * Неразрешенный конфликт файла конфигурации
+ */
+public class N2oGitOpenConflict {
+    private String localPath;
+    private String mergeCommitId;
+    private int count;
+
+    public N2oGitOpenConflict(String localPath, String mergeCommitId, int count) {
+        this.localPath = localPath;
+        this.mergeCommitId = mergeCommitId;
+        this.count = count;
+    }
+
+    public String getLocalPath() {
+        return localPath;
+    }
+
+    /**
+     * @return коммит слияния, в котором возник конфликт, null - неизвестен(реестр построен по содержимому ветки)
+     */
+    public String getMergeCommitId() {
+        return mergeCommitId;
+    }
+
+    /**
+     * @return количество конфликтов в файле
+     */
+    public int getCount() {
+        return count;
+    }
+}
@@ -0,0 +1,67 @@
+package net.n2oapp.framework.config.audit.git.model;
+
+import org.eclipse.jgit.lib.ObjectId;
+
+import static net.n2oapp.framework.config.register.audit.model.N2oConfigMessage.*;
+
+/**
+ * Состояние файла в git индексе относительно HEAD
+ */
+public class N2oGitPathState {
+    private String localPath;
+    private ObjectId headId;
+    private ObjectId indexId;
+
+    public N2oGitPathState(String localPath, ObjectId headId, ObjectId indexId) {
+        this.localPath = localPath;
+        this.headId = headId;
+        this.indexId = indexId;
+    }
+
+    public String getLocalPath() {
+        return localPath;
+    }
+
+    /**
+     * @return идентификатор содержимого файла в HEAD, null - файла нет в HEAD
+     */
+    public ObjectId getHeadId() {
+        return headId;
+    }
+
+    /**
+     * @return идентификатор содержимого файла в индексе, null - файла нет в индексе
+     */
+    public ObjectId getIndexId() {
+        return indexId;
+    }
+
+    public boolean isClean() {
+        return headId == null ? indexId == null : headId.equals(indexId);
+    }
+
+    public boolean isAdded() {
+        return headId == null && indexId != null;
+    }
+
+    public boolean isChanged() {
+        return headId != null && indexId != null && !headId.equals(indexId);
+    }
+
+    public boolean isRemoved() {
+        return headId != null && indexId == null;
+    }
+
+    /**
+     * @return префикс сообщения коммита, соответствующий изменению файла
+     */
+    public String getMessagePrefix() {
+        if (isAdded())
+            return CREATED_PREFIX.value;
+        else if (isChanged())
+            return UPDATED_PREFIX.value;
+        else if (isRemoved())
+            return DELETED_PREFIX.value;
+        return "";
+    }
+}
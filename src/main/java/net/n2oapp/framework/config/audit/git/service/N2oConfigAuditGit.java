@@ -5,28 +5,44 @@ import net.n2oapp.framework.api.N2oConfigStarterEvent;
 import net.n2oapp.framework.api.UsersUtil;
 import net.n2oapp.framework.api.event.N2oEventListener;
 import net.n2oapp.framework.config.ConfigStarter;
+import net.n2oapp.framework.config.audit.git.core.N2oGitTreeEditor;
+import net.n2oapp.framework.config.audit.git.model.N2oGitChange;
+import net.n2oapp.framework.config.audit.git.model.N2oGitGraphCommit;
+import net.n2oapp.framework.config.audit.git.model.N2oGitOpenConflict;
 import net.n2oapp.framework.config.register.ConfigRegister;
 import net.n2oapp.framework.config.register.Info;
 import net.n2oapp.framework.config.register.InfoStatus;
 import net.n2oapp.framework.config.register.audit.N2oConfigAudit;
 import net.n2oapp.framework.config.register.audit.model.N2oConfigConflict;
 import net.n2oapp.framework.config.register.audit.model.N2oConfigHistory;
+import org.apache.commons.io.IOUtils;
 import org.eclipse.jgit.api.errors.GitAPIException;
+import org.eclipse.jgit.util.TemporaryBuffer;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import java.io.File;
 import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Date;
 import java.util.HashSet;
 import java.util.List;
 import java.util.Properties;
 import java.util.Set;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.Lock;
+import java.util.stream.Stream;
 
 import static net.n2oapp.framework.config.audit.git.util.N2oGitConstant.Author.SYSTEM_AUTHOR_NAME;
 import static net.n2oapp.framework.config.audit.git.util.N2oGitConstant.Branch.SERVER_BRANCH_NAME;
 import static net.n2oapp.framework.config.audit.git.util.N2oGitConstant.Branch.SYSTEM_BRANCH_NAME;
+import static net.n2oapp.framework.config.audit.git.util.N2oGitConstant.StorageMode.ALL;
 import static net.n2oapp.framework.config.audit.git.util.N2oGitConstant.StorageMode.MODIFY;
 import static net.n2oapp.framework.config.audit.git.util.N2oGitConstant.appVersion;
+import static net.n2oapp.framework.config.audit.git.util.N2oGitConstant.systemInCore;
+import static net.n2oapp.framework.config.audit.git.util.N2oGitConstant.systemReadThreads;
 import static net.n2oapp.framework.config.audit.git.util.N2oGitFileUtil.*;
 import static net.n2oapp.framework.config.register.audit.model.N2oConfigMessage.N2O_VERSION_PREFIX;
 import static net.n2oapp.framework.config.register.audit.model.N2oConfigMessage.SERVER_PREFIX;
@@ -45,20 +61,26 @@ public class N2oConfigAuditGit implements N2oConfigAudit, N2oEventListener<N2oCo
     @Override
     public synchronized void handle(N2oConfigStarterEvent event) {
         if (!isStarted && n2oGit.isInit()) {
-            startAudit();
+            Lock writeLock = n2oGit.getWriteLock();
+            writeLock.lock();
+            try {
+                startAudit();
+            } finally {
+                writeLock.unlock();
+            }
             isStarted = true;
         }
     }
 
     @Override
-    public synchronized Info add(Info info) {
+    public Info add(Info info) {
         if (!isStarted)
             return null;
         return auditAdd(info);
     }
 
     @Override
-    public synchronized Info remove(Info info) {
+    public Info remove(Info info) {
         if (!isStarted)
             return null;
         return auditRemove(info);
@@ -72,6 +94,47 @@ public class N2oConfigAuditGit implements N2oConfigAudit, N2oEventListener<N2oCo
 
     }
 
+    /**
+     * Возвращает страницу истории изменений файла конфигурации
+     *
+     * @param localPath локальный путь к файлу
+     * @param offset    количество пропускаемых записей
+     * @param limit     максимальное количество записей
+     * @return записи истории, начиная с последнего изменения
+     */
+    public List<N2oConfigHistory> retrieveHistory(String localPath, int offset, int limit) {
+        if (localPath == null || !isStarted)
+            return null;
+        return n2oGit.auditHistory(localPath, offset, limit);
+    }
+
+    /**
+     * Возвращает страницу истории изменений файла конфигурации, следующую за указанной записью
+     *
+     * @param localPath локальный путь к файлу
+     * @param afterCode код последней записи предыдущей страницы, null - первая страница
+     * @param limit     максимальное количество записей
+     * @return записи истории
+     */
+    public List<N2oConfigHistory> retrieveHistory(String localPath, String afterCode, int limit) {
+        if (localPath == null || !isStarted)
+            return null;
+        return n2oGit.auditHistory(localPath, afterCode, limit);
+    }
+
+    /**
+     * Возвращает историю изменений файла конфигурации в виде потока, для выгрузки.
+     * Поток необходимо закрыть.
+     *
+     * @param localPath локальный путь к файлу
+     * @return поток записей истории
+     */
+    public Stream<N2oConfigHistory> streamHistory(String localPath) {
+        if (localPath == null || !isStarted)
+            return Stream.empty();
+        return n2oGit.streamHistory(localPath);
+    }
+
     @Override
     public N2oConfigConflict retrieveConflict(String localPath) {
         if (!isStarted)
@@ -79,6 +142,17 @@ public class N2oConfigAuditGit implements N2oConfigAudit, N2oEventListener<N2oCo
         return n2oGit.retrieveConflictFromLog(localPath);
     }
 
+    /**
+     * Возвращает все неразрешенные конфликты файлов конфигураций
+     *
+     * @return неизменяемый список конфликтов
+     */
+    public List<N2oGitOpenConflict> retrieveOpenConflicts() {
+        if (!isStarted)
+            return Collections.emptyList();
+        return n2oGit.retrieveOpenConflicts();
+    }
+
     @Override
     public String retrieveGraph() {
         if (!isStarted)
@@ -86,6 +160,32 @@ public class N2oConfigAuditGit implements N2oConfigAudit, N2oEventListener<N2oCo
         return n2oGit.retrieveGraph();
     }
 
+    /**
+     * Строит граф коммитов в заданном окне
+     *
+     * @param out      вывод графа
+     * @param maxCount максимальное количество коммитов, 0 - без ограничения
+     * @param since    дата, с которой показываются коммиты, null - без ограничения
+     */
+    public void retrieveGraph(Appendable out, int maxCount, Date since) {
+        if (!isStarted)
+            return;
+        n2oGit.retrieveGraph(out, maxCount, since);
+    }
+
+    /**
+     * Возвращает страницу графа коммитов в виде модели для отрисовки на клиенте
+     *
+     * @param offset количество пропускаемых коммитов
+     * @param limit  максимальное количество коммитов
+     * @return коммиты графа, начиная с последнего
+     */
+    public List<N2oGitGraphCommit> retrieveGraphCommits(int offset, int limit) {
+        if (!isStarted)
+            return Collections.emptyList();
+        return n2oGit.retrieveGraphCommits(offset, limit);
+    }
+
     @Override
     public Class<N2oConfigStarterEvent> getType() {
         return N2oConfigStarterEvent.class;
@@ -93,11 +193,20 @@ public class N2oConfigAuditGit implements N2oConfigAudit, N2oEventListener<N2oCo
 
     private void startAudit() {
         Set<File> modifyFiles = retrieveModifyFiles();
+        String fingerprint = calculateFingerprint(confReg.getAllInfoList());
         try {
+            boolean upToDate = n2oGit.isSystemUpToDate(appVersion, fingerprint);
             n2oGit.doCheckout(SERVER_BRANCH_NAME);
             n2oGit.commitAll(SERVER_PREFIX.value, getAuthor());
-            processBranchSystem();
-            processBranchServer();
+            if (upToDate) {
+                logger.info("Config audit system branch is up to date, refresh skipped.");
+            } else {
+                processBranchSystem();
+                processBranchServer();
+                n2oGit.saveSystemState(appVersion, fingerprint);
+            }
+            if (ALL.equals(properties.getProperty("n2o.config.audit.storage.mode")))
+                restoreStorage();
         } catch (GitAPIException | IOException e) {
             throw new RuntimeException("Start config audit error.", e);
         } finally {
@@ -106,6 +215,17 @@ public class N2oConfigAuditGit implements N2oConfigAudit, N2oEventListener<N2oCo
         }
     }
 
+    private void restoreStorage() throws GitAPIException {
+        List<String> missingPaths = new ArrayList<>();
+        for (Info info : confReg.getAllInfoList()) {
+            Info systemInfo = resolveSystemInfo(info);
+            if (systemInfo != null && systemInfo.getLocalPath() != null
+                    && !n2oGit.resolveAbsolutePath(systemInfo.getLocalPath()).exists())
+                missingPaths.add(systemInfo.getLocalPath());
+        }
+        n2oGit.restore(missingPaths);
+    }
+
     private Set<File> retrieveModifyFiles() {
         Set<File> modifyFiles = new HashSet<>();
         confReg.getAllInfoList().forEach(info -> {
@@ -117,12 +237,40 @@ public class N2oConfigAuditGit implements N2oConfigAudit, N2oEventListener<N2oCo
     }
 
     private void cleanStorage(Set<File> modifyFiles) {
+        Set<File> deletedFiles;
         try {
-            deleteAllFiles(modifyFiles);
+            deletedFiles = deleteAllFiles(modifyFiles);
         } catch (IOException e) {
             throw new RuntimeException("Config audit clean storage error.", e);
         }
-        reRegistering();
+        reRegistering(deletedFiles);
+    }
+
+    /**
+     * <p>Перерегистрирует только конфигурации, файлы которых удалены при очистке каталога.</p>
+     * <p>Удаляются только файлы, идентичные системным, поэтому такие конфигурации заменяются их предками.
+     * Если удален файл конфигурации без предка, выполняется полная перерегистрация.</p>
+     *
+     * @param deletedFiles удаленные файлы
+     */
+    public void reRegistering(Set<File> deletedFiles) {
+        if (deletedFiles.isEmpty())
+            return;
+        List<Info> deletedInfos = new ArrayList<>();
+        for (Info info : confReg.getAllInfoList()) {
+            if (info.getFile() == null || !deletedFiles.contains(normalize(info.getFile())))
+                continue;
+            if (info.getAncestor() == null) {
+                reRegistering();
+                return;
+            }
+            deletedInfos.add(info);
+        }
+        for (Info info : deletedInfos) {
+            confReg.remove(info.getConfigId());
+            confReg.add(info.getAncestor());
+        }
+        logger.info("Config audit re-registered {} configs after storage cleanup.", deletedInfos.size());
     }
 
     public void reRegistering() {
@@ -130,13 +278,86 @@ public class N2oConfigAuditGit implements N2oConfigAudit, N2oEventListener<N2oCo
     }
 
     private void processBranchSystem() throws GitAPIException, IOException {
+        if (systemInCore) {
+            processBranchSystemInCore();
+            return;
+        }
         n2oGit.doCheckout(SYSTEM_BRANCH_NAME);
-        for (Info info : confReg.getAllInfoList()) {
-            createInfoFile(info);
+        AtomicInteger written = new AtomicInteger();
+        AtomicInteger skipped = new AtomicInteger();
+        //файл, совпадающий с системной веткой, не перезаписывается; отсутствующий на диске файл записывается:
+        //переключение ветки не восстанавливает файлы, удаленные из рабочего каталога
+        try (N2oGitTreeEditor editor = n2oGit.editBranch(SYSTEM_BRANCH_NAME)) {
+            readContents(retrieveSystemInfos(), systemReadThreads, (systemInfo, content, length) -> {
+                if (checkoutFile(systemInfo, content, editor))
+                    written.incrementAndGet();
+                else
+                    skipped.incrementAndGet();
+            });
         }
+        logger.info("Config audit system branch: {} files written, {} skipped as unchanged.", written, skipped);
         n2oGit.commitAll(N2O_VERSION_PREFIX.value + appVersion, getAuthor());
     }
 
+    /**
+     * <p>Записывает системный файл в рабочий каталог, если его нет на диске или содержимое отличается от системной ветки.</p>
+     * <p>Содержимое сравнивается с системной веткой по идентификатору с приведенными концами строк, а не побайтно
+     * с файлом: при core.autocrlf=true файлы рабочего каталога содержат CRLF и побайтно не совпадают.</p>
+     *
+     * @param systemInfo информация о системном файле
+     * @param content    поток с содержимым файла
+     * @param editor     построитель коммита системной ветки
+     * @return true - файл записан
+     * @throws IOException ошибка чтения или записи
+     */
+    private boolean checkoutFile(Info systemInfo, InputStream content, N2oGitTreeEditor editor) throws IOException {
+        File file = resolveConfigFile(systemInfo);
+        TemporaryBuffer buffer = new TemporaryBuffer.LocalFile(null);
+        try {
+            try {
+                IOUtils.copyLarge(content, buffer);
+            } finally {
+                buffer.close();
+            }
+            if (file.isFile()) {
+                try (InputStream in = buffer.openInputStream()) {
+                    if (editor.idFor(in).equals(editor.getBaseId(systemInfo.getLocalPath())))
+                        return false;
+                }
+            }
+            try (InputStream in = buffer.openInputStream()) {
+                return writeFile(in, file);
+            }
+        } finally {
+            buffer.destroy();
+        }
+    }
+
+    private void processBranchSystemInCore() throws IOException {
+        AtomicInteger written = new AtomicInteger();
+        AtomicInteger skipped = new AtomicInteger();
+        try (N2oGitTreeEditor editor = n2oGit.editBranch(SYSTEM_BRANCH_NAME)) {
+            readContents(retrieveSystemInfos(), systemReadThreads, (systemInfo, content, length) -> {
+                if (editor.update(systemInfo.getLocalPath(), content))
+                    written.incrementAndGet();
+                else
+                    skipped.incrementAndGet();
+            });
+            editor.commit(N2O_VERSION_PREFIX.value + appVersion, getAuthor());
+        }
+        logger.info("Config audit system branch: {} files written, {} skipped as unchanged.", written, skipped);
+    }
+
+    private List<Info> retrieveSystemInfos() {
+        List<Info> systemInfos = new ArrayList<>();
+        for (Info info : confReg.getAllInfoList()) {
+            Info systemInfo = resolveSystemInfo(info);
+            if (systemInfo != null)
+                systemInfos.add(systemInfo);
+        }
+        return systemInfos;
+    }
+
     private void processBranchServer() throws GitAPIException, IOException {
         n2oGit.doCheckout(SERVER_BRANCH_NAME);
         n2oGit.doMerge(SYSTEM_BRANCH_NAME, properties.getProperty("n2o.config.audit.conflict.mode"));
@@ -153,7 +374,7 @@ public class N2oConfigAuditGit implements N2oConfigAudit, N2oEventListener<N2oCo
 
     private Info auditAdd(Info info) {
         if (isStarted && info.getFile() != null) {
-            n2oGit.commit(info.getLocalPath(), getAuthor(), InfoStatus.calculateStatus(info, true));
+            submit(new N2oGitChange(info.getLocalPath(), getAuthor(), InfoStatus.calculateStatus(info, true)));
         }
         return info;
     }
@@ -162,25 +383,46 @@ public class N2oConfigAuditGit implements N2oConfigAudit, N2oEventListener<N2oCo
         File file = info.getFile();
         if (!isStarted || file == null)
             return info;
-        boolean hasAncestor = info.getAncestor() != null;
-        InfoStatus.Status status = InfoStatus.Status.SERVER;
-        if (hasAncestor) {
-            info.setInternalModified(true);
-            file = createFile(info.getAncestor());
-            status = InfoStatus.calculateStatus(info, true);
-        }
-        n2oGit.commitRemoved(info.getLocalPath(), getAuthor(), status);
-        if (info.getAncestor() != null && file != null) {
-            try {
+        N2oGitChange change;
+        N2oGitCommitQueue queue;
+        Lock writeLock = n2oGit.getWriteLock();
+        writeLock.lock();
+        try {
+            boolean hasAncestor = info.getAncestor() != null;
+            InfoStatus.Status status = InfoStatus.Status.SERVER;
+            if (hasAncestor) {
+                info.setInternalModified(true);
+                file = createFile(info.getAncestor());
+                status = InfoStatus.calculateStatus(info, true);
+            }
+            File restoredFile = null;
+            if (hasAncestor && file != null) {
                 info.setInternalModified(true);
-                deleteFile(file);
-            } catch (IOException e) {
-                throw new RuntimeException("Config audit remove error.", e);
+                restoredFile = file;
+            }
+            change = new N2oGitChange(info.getLocalPath(), getAuthor(), status, restoredFile);
+            queue = n2oGit.getCommitQueue();
+            //синхронный коммит выполняется в той же блокировке, что и восстановление файла,
+            //чтобы между ними не вклинились другие коммиты и слияния
+            if (queue == null) {
+                n2oGit.commit(change);
+                return info;
             }
+        } finally {
+            writeLock.unlock();
         }
+        //очередь асинхронных коммитов может быть заполнена, поэтому изменение ставится в нее без блокировки записи
+        queue.submit(change);
         return info;
     }
 
+    private void submit(N2oGitChange change) {
+        if (n2oGit.isAsync())
+            n2oGit.submit(change);
+        else
+            n2oGit.commit(change);
+    }
+
     public void setN2oGit(N2oGit n2oGit) {
         this.n2oGit = n2oGit;
     }
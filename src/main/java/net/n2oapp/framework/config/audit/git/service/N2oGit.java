@@ -1,36 +1,56 @@
 package net.n2oapp.framework.config.audit.git.service;
 
 import net.n2oapp.framework.config.audit.git.core.N2oGitCore;
+import net.n2oapp.framework.config.audit.git.core.N2oGitGraph;
+import net.n2oapp.framework.config.audit.git.core.N2oGitHistoryWalk;
+import net.n2oapp.framework.config.audit.git.core.N2oGitReadSession;
+import net.n2oapp.framework.config.audit.git.core.N2oGitTreeEditor;
+import net.n2oapp.framework.config.audit.git.model.N2oGitChange;
+import net.n2oapp.framework.config.audit.git.model.N2oGitGraphCommit;
+import net.n2oapp.framework.config.audit.git.model.N2oGitOpenConflict;
+import net.n2oapp.framework.config.audit.git.model.N2oGitPathState;
+import net.n2oapp.framework.config.audit.git.util.N2oGitConflictScanner;
 import net.n2oapp.framework.config.audit.git.util.N2oGitConstant;
 import net.n2oapp.framework.config.register.InfoStatus;
 import net.n2oapp.framework.config.register.audit.model.N2oConfigConflict;
 import net.n2oapp.framework.config.register.audit.model.N2oConfigHistory;
-import net.n2oapp.framework.config.register.audit.util.N2oConfigConflictParser;
-import net.n2oapp.framework.config.util.FileSystemUtil;
 import org.eclipse.jgit.api.MergeCommand;
 import org.eclipse.jgit.api.MergeResult;
 import org.eclipse.jgit.api.errors.GitAPIException;
-import org.eclipse.jgit.diff.DiffEntry;
-import org.eclipse.jgit.diff.DiffFormatter;
-import org.eclipse.jgit.lib.ObjectId;
-import org.eclipse.jgit.lib.ObjectReader;
-import org.eclipse.jgit.lib.PersonIdent;
-import org.eclipse.jgit.lib.Repository;
+import org.eclipse.jgit.diff.RawText;
+import org.eclipse.jgit.dircache.DirCache;
+import org.eclipse.jgit.dircache.DirCacheBuilder;
+import org.eclipse.jgit.dircache.DirCacheEntry;
+import org.eclipse.jgit.lib.*;
+import org.eclipse.jgit.merge.MergeFormatter;
+import org.eclipse.jgit.merge.MergeStrategy;
+import org.eclipse.jgit.merge.ResolveMerger;
 import org.eclipse.jgit.revwalk.RevCommit;
-import org.eclipse.jgit.revwalk.RevTree;
+import org.eclipse.jgit.revwalk.RevObject;
 import org.eclipse.jgit.revwalk.RevWalk;
-import org.eclipse.jgit.treewalk.AbstractTreeIterator;
-import org.eclipse.jgit.treewalk.CanonicalTreeParser;
+import org.eclipse.jgit.treewalk.EmptyTreeIterator;
+import org.eclipse.jgit.treewalk.TreeWalk;
+import org.eclipse.jgit.treewalk.filter.AndTreeFilter;
 import org.eclipse.jgit.treewalk.filter.PathFilter;
+import org.eclipse.jgit.treewalk.filter.TreeFilter;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
 
-import java.io.ByteArrayOutputStream;
-import java.io.File;
-import java.io.IOException;
-import java.text.SimpleDateFormat;
+import java.io.*;
 import java.util.*;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.locks.Lock;
+import java.util.stream.Stream;
+import java.util.stream.StreamSupport;
 
 import static net.n2oapp.framework.config.audit.git.util.N2oGitConstant.Author.SYSTEM_AUTHOR_NAME;
 import static net.n2oapp.framework.config.audit.git.util.N2oGitConstant.DEFAULT_FILE_ENCODING;
+import static net.n2oapp.framework.config.audit.git.util.N2oGitConstant.DEFAULT_LINE_END;
+import static net.n2oapp.framework.config.audit.git.util.N2oGitConstant.conflictResolveThreads;
+import static net.n2oapp.framework.config.audit.git.util.N2oGitFileUtil.deleteFile;
 import static net.n2oapp.framework.config.audit.git.util.N2oGitUtil.*;
 import static net.n2oapp.framework.config.register.audit.model.N2oConfigMergeMode.*;
 import static net.n2oapp.framework.config.register.audit.model.N2oConfigMessage.*;
@@ -40,40 +60,230 @@ import static net.n2oapp.framework.config.register.audit.model.N2oConfigMessage.
  * @since 10.07.2015
  */
 public class N2oGit {
+    private static Logger logger = LoggerFactory.getLogger(N2oGit.class);
+    private static final String STATE_FILE_NAME = "n2o_audit_state";
+    private static final String STATE_APP_VERSION = "app.version";
+    private static final String STATE_FINGERPRINT = "system.fingerprint";
+    private static final String STATE_SYSTEM_COMMIT = "system.commit";
+    private static final String CONFLICT_FILE_NAME = "n2o_conflicts";
     private N2oGitCore gitCore = N2oGitCore.getInstance();
+    private N2oGitCommitQueue commitQueue;
+    private N2oGitConflictRegistry conflictRegistry;
+    private N2oGitGraph graph;
+    private N2oGitHistoryCache historyCache = new N2oGitHistoryCache(N2oGitConstant.historyCacheSize, N2oGitConstant.historyCacheBytes);
 
     public void commit(String localPath, String author, InfoStatus.Status status) {
         if (localPath == null || localPath.equals(""))
             return;
-        gitCore.add(localPath);
-        if (isClean())
-            return;
-        String message = "";
-        if (wasConflict(status, countLastCommitConflict(localPath)))
-            message = conflictMessage(status);
-        gitCore.commit(message + localPath, author);
+        Lock writeLock = gitCore.getWriteLock();
+        writeLock.lock();
+        try {
+            gitCore.add(localPath);
+            N2oGitPathState state = gitCore.retrieveState(localPath);
+            if (state.isClean())
+                return;
+            ObjectId snapshotId = currentSnapshot();
+            String message = buildMessage(state, status);
+            gitCore.commit(message, author);
+            advanceHistoryCache(snapshotId);
+            resolveConflict(state, message);
+        } finally {
+            writeLock.unlock();
+        }
     }
 
     public void commitRemoved(String localPath, String author, InfoStatus.Status status) {
         if (localPath == null || localPath.equals(""))
             return;
-        gitCore.addUpdated(localPath);
-        if (isClean())
+        Lock writeLock = gitCore.getWriteLock();
+        writeLock.lock();
+        try {
+            gitCore.addUpdated(localPath);
+            N2oGitPathState state = gitCore.retrieveState(localPath);
+            if (state.isClean())
+                return;
+            ObjectId snapshotId = currentSnapshot();
+            String message = buildMessageForRemove(state, status) + localPath;
+            gitCore.commit(message, author);
+            advanceHistoryCache(snapshotId);
+            resolveConflict(state, message);
+        } finally {
+            writeLock.unlock();
+        }
+    }
+
+    public void commit(N2oGitChange change) {
+        if (N2oGitConstant.optimisticCommit) {
+            commitOptimistic(change.getAuthor(), Collections.singletonList(change));
             return;
-        String message = buildMessageForRemove(localPath, status);
-        gitCore.commit(message + localPath, author);
+        }
+        Lock writeLock = gitCore.getWriteLock();
+        writeLock.lock();
+        try {
+            if (change.isRemoved())
+                commitRemoved(change.getLocalPath(), change.getAuthor(), change.getStatus());
+            else
+                commit(change.getLocalPath(), change.getAuthor(), change.getStatus());
+            deleteRestoredFile(change);
+        } finally {
+            writeLock.unlock();
+        }
     }
 
+    public void commit(String author, List<N2oGitChange> changes) {
+        if (N2oGitConstant.optimisticCommit) {
+            commitOptimistic(author, changes);
+            return;
+        }
+        Lock writeLock = gitCore.getWriteLock();
+        writeLock.lock();
+        try {
+            if (changes.size() == 1) {
+                commit(changes.get(0));
+                return;
+            }
+            Map<String, N2oGitChange> staged = new LinkedHashMap<>();
+            try {
+                commitStaged(author, changes, staged);
+            } catch (RuntimeException e) {
+                gitCore.resetPaths(staged.keySet());
+                throw e;
+            } finally {
+                changes.forEach(this::deleteRestoredFile);
+            }
+        } finally {
+            writeLock.unlock();
+        }
+    }
+
+    /**
+     * Добавляет изменения в git индекс и коммитит их одним коммитом
+     *
+     * @param author  автор коммита
+     * @param changes изменения файлов конфигураций
+     * @param staged  добавленные в индекс изменения по локальному пути, заполняется по ходу добавления
+     */
+    private void commitStaged(String author, List<N2oGitChange> changes, Map<String, N2oGitChange> staged) {
+        for (N2oGitChange change : changes) {
+            String localPath = change.getLocalPath();
+            if (localPath == null || localPath.equals(""))
+                continue;
+            if (change.isRemoved())
+                gitCore.addUpdated(localPath);
+            else
+                gitCore.add(localPath);
+            staged.put(localPath, change);
+        }
+        Map<N2oGitPathState, String> messages = new LinkedHashMap<>();
+        for (N2oGitChange change : staged.values()) {
+            N2oGitPathState state = gitCore.retrieveState(change.getLocalPath());
+            if (state.isClean())
+                continue;
+            if (change.isRemoved())
+                messages.put(state, buildMessageForRemove(state, change.getStatus()) + change.getLocalPath());
+            else
+                messages.put(state, buildMessage(state, change.getStatus()));
+        }
+        if (!messages.isEmpty()) {
+            ObjectId snapshotId = currentSnapshot();
+            gitCore.commit(String.join(DEFAULT_LINE_END, messages.values()), author);
+            advanceHistoryCache(snapshotId);
+            messages.forEach(this::resolveConflict);
+        }
+    }
+
+    /**
+     * <p>Коммитит изменения оптимистично, без git индекса и блокировки записи на время построения коммита.</p>
+     * <p>Содержимое файлов из рабочего каталога записывается в дерево серверной ветки в памяти,
+     * ветка переводится, только если не изменилась с начала построения, иначе коммит строится заново.
+     * Под блокировкой записи выполняются только перевод ветки и последующее обновление кэша истории и реестра конфликтов.</p>
+     *
+     * @param author  автор коммита
+     * @param changes изменения файлов конфигураций
+     */
+    private void commitOptimistic(String author, List<N2oGitChange> changes) {
+        OptimisticEdit edit = new OptimisticEdit(changes);
+        try {
+            if (gitCore.commitOptimistic(N2oGitConstant.Branch.SERVER_BRANCH_NAME, author, edit) != null) {
+                Lock writeLock = gitCore.getWriteLock();
+                writeLock.lock();
+                try {
+                    advanceHistoryCache(edit.baseCommitId);
+                    edit.messages.forEach(this::resolveConflict);
+                } finally {
+                    writeLock.unlock();
+                }
+            }
+        } catch (IOException e) {
+            throw new RuntimeException("Config audit commit error.", e);
+        }
+        changes.forEach(this::deleteRestoredFile);
+    }
+
+    /**
+     * Удаляет конфликт из реестра, если коммит разрешил его или удалил файл
+     *
+     * @param state   состояние файла перед коммитом
+     * @param message сообщение коммита файла
+     */
+    private void resolveConflict(N2oGitPathState state, String message) {
+        if (state.isRemoved() || message.startsWith(RESOLVED_PREFIX.value) || message.startsWith(RESOLVED_TO_SYSTEM_PREFIX.value))
+            getConflictRegistry().resolve(Collections.singleton(state.getLocalPath()));
+    }
+
+    /**
+     * Коммитит изменение сразу либо ставит его в очередь асинхронных коммитов
+     *
+     * @param change изменение файла конфигурации
+     */
+    public void submit(N2oGitChange change) {
+        N2oGitCommitQueue queue = getCommitQueue();
+        if (queue != null)
+            queue.submit(change);
+        else
+            commit(change);
+    }
+
+    /**
+     * Ожидает коммита всех изменений из очереди асинхронных коммитов
+     */
+    public void flush() {
+        N2oGitCommitQueue queue = getCommitQueue();
+        if (queue != null)
+            queue.flush();
+    }
+
+    public boolean isAsync() {
+        return getCommitQueue() != null;
+    }
+
+    private void deleteRestoredFile(N2oGitChange change) {
+        if (change.getRestoredFile() == null)
+            return;
+        try {
+            deleteFile(change.getRestoredFile());
+        } catch (IOException e) {
+            throw new RuntimeException("Config audit remove error.", e);
+        }
+    }
 
     public void commitAll(String message, String author) {
         commitAll(message, author, false);
     }
 
     public void commitAll(String message, String author, Boolean forceCommit) {
-        gitCore.add(".");
-        if (isClean() && !forceCommit)
-            return;
-        gitCore.commit(message, author);
+        Lock writeLock = gitCore.getWriteLock();
+        writeLock.lock();
+        try {
+            gitCore.add(".");
+            if (isClean() && !forceCommit)
+                return;
+            ObjectId snapshotId = currentSnapshot();
+            gitCore.commit(message, author);
+            advanceHistoryCache(snapshotId);
+        } finally {
+            writeLock.unlock();
+        }
     }
 
     public void add(String localPath) {
@@ -86,7 +296,44 @@ public class N2oGit {
         gitCore.doCheckout(branchName);
     }
 
-    public synchronized void doMerge(String branchRef, String mode) throws GitAPIException, IOException {
+    public void restore(Collection<String> localPaths) throws GitAPIException {
+        if (localPaths.isEmpty())
+            return;
+        gitCore.checkoutPaths(localPaths);
+    }
+
+    public N2oGitTreeEditor editBranch(String branchName) throws IOException {
+        return gitCore.editBranch(branchName);
+    }
+
+    public void doMerge(String branchRef, String mode) throws GitAPIException, IOException {
+        Lock writeLock = gitCore.getWriteLock();
+        writeLock.lock();
+        try {
+            ObjectId snapshotId = gitCore.retrieveSnapshot();
+            try {
+                merge(branchRef, mode);
+            } finally {
+                advanceHistoryCache(snapshotId);
+            }
+        } finally {
+            writeLock.unlock();
+        }
+    }
+
+    private void merge(String branchRef, String mode) throws GitAPIException, IOException {
+        MergeResult mergeResult = N2oGitConstant.mergeInCore ? doMergeInCore(branchRef) : doMergeWorkingTree(branchRef);
+        if (MergeResult.MergeStatus.ALREADY_UP_TO_DATE.equals(mergeResult.getMergeStatus()))
+            return;
+        Map<String, int[][]> conflicts = mergeResult.getConflicts();
+        if (conflicts != null)
+            registerConflicts(conflicts);
+        if (conflicts != null && !MANUAL.getValue().equals(mode) && isAutomaticMode(mode)) {
+            autoResolveConflicts(mode, conflicts.keySet());
+        }
+    }
+
+    private MergeResult doMergeWorkingTree(String branchRef) throws GitAPIException, IOException {
         Repository repo = gitCore.getGit().getRepository();
         MergeResult mergeResult = gitCore.getGit()
                 .merge()
@@ -95,43 +342,197 @@ public class N2oGit {
                 .setFastForward(MergeCommand.FastForwardMode.NO_FF)
                 .call();
         if (MergeResult.MergeStatus.ALREADY_UP_TO_DATE.equals(mergeResult.getMergeStatus()))
-            return;
-        Map<String, int[][]> conflicts = mergeResult.getConflicts();
-        commitAll(resolveMessage(branchRef, conflicts), SYSTEM_AUTHOR_NAME, true);
-        if (conflicts != null && !MANUAL.getValue().equals(mode) && isAutomaticMode(mode)) {
-            autoResolveConflicts(mode, conflicts.keySet());
+            return mergeResult;
+        commitAll(resolveMessage(branchRef, mergeResult.getConflicts()), SYSTEM_AUTHOR_NAME, true);
+        return mergeResult;
+    }
+
+    /**
+     * <p>Слияние в памяти, без слияния в рабочем каталоге и последующего {@code git add .}</p>
+     * <p>Конфликтные файлы попадают в коммит слияния с git метками конфликтов, как и при обычном слиянии.
+     * Рабочий каталог и индекс обновляются только по файлам, измененным слиянием.</p>
+     */
+    private MergeResult doMergeInCore(String branchRef) throws IOException {
+        Repository repo = gitCore.getRepository();
+        Ref ref = repo.getRef(branchRef);
+        ObjectId head = repo.resolve(Constants.HEAD);
+        ObjectId theirs = ref.getObjectId();
+        try (N2oGitReadSession session = gitCore.openSession()) {
+            if (session.isMergedInto(theirs, head))
+                return new MergeResult(head, theirs, new ObjectId[]{head, theirs},
+                        MergeResult.MergeStatus.ALREADY_UP_TO_DATE, MergeStrategy.RECURSIVE, null);
+        }
+        ResolveMerger merger = (ResolveMerger) MergeStrategy.RECURSIVE.newMerger(repo, true);
+        DirCache dirCache = DirCache.newInCore();
+        merger.setDirCache(dirCache);
+        String[] commitNames = {"BASE", "HEAD", ref.getName()};
+        merger.setCommitNames(commitNames);
+        boolean merged = merger.merge(head, theirs);
+        if (!merger.getFailingPaths().isEmpty())
+            throw new RuntimeException("Config audit merge error: " + merger.getFailingPaths());
+        Map<String, org.eclipse.jgit.merge.MergeResult<?>> lowLevelResults = new HashMap<>(merger.getMergeResults());
+        ObjectId treeId = merged ? merger.getResultTreeId() : writeConflictTree(dirCache, lowLevelResults, commitNames);
+        MergeResult mergeResult = new MergeResult(null, merger.getBaseCommitId(), new ObjectId[]{head, theirs},
+                merged ? MergeResult.MergeStatus.MERGED : MergeResult.MergeStatus.CONFLICTING, MergeStrategy.RECURSIVE, lowLevelResults);
+        gitCore.commitTree(treeId, resolveMessage(branchRef, mergeResult.getConflicts()), SYSTEM_AUTHOR_NAME, head, theirs);
+        return mergeResult;
+    }
+
+    @SuppressWarnings("unchecked")
+    private ObjectId writeConflictTree(DirCache dirCache, Map<String, org.eclipse.jgit.merge.MergeResult<?>> lowLevelResults,
+                                       String[] commitNames) throws IOException {
+        DirCache result = DirCache.newInCore();
+        DirCacheBuilder builder = result.builder();
+        try (ObjectInserter inserter = gitCore.getRepository().newObjectInserter()) {
+            int i = 0;
+            while (i < dirCache.getEntryCount()) {
+                DirCacheEntry entry = dirCache.getEntry(i);
+                int next = dirCache.nextEntry(i);
+                if (entry.getStage() == DirCacheEntry.STAGE_0) {
+                    builder.add(entry);
+                    i = next;
+                    continue;
+                }
+                DirCacheEntry ours = null;
+                DirCacheEntry theirs = null;
+                for (int k = i; k < next; k++) {
+                    DirCacheEntry stageEntry = dirCache.getEntry(k);
+                    if (stageEntry.getStage() == DirCacheEntry.STAGE_2)
+                        ours = stageEntry;
+                    else if (stageEntry.getStage() == DirCacheEntry.STAGE_3)
+                        theirs = stageEntry;
+                }
+                String path = entry.getPathString();
+                DirCacheEntry resolved = new DirCacheEntry(path);
+                org.eclipse.jgit.merge.MergeResult<?> lowLevelResult = lowLevelResults.get(path);
+                if (lowLevelResult != null) {
+                    ByteArrayOutputStream out = new ByteArrayOutputStream();
+                    new MergeFormatter().formatMerge(out, (org.eclipse.jgit.merge.MergeResult<RawText>) lowLevelResult,
+                            Arrays.asList(commitNames), DEFAULT_FILE_ENCODING);
+                    resolved.setFileMode(FileMode.REGULAR_FILE);
+                    resolved.setObjectId(inserter.insert(Constants.OBJ_BLOB, out.toByteArray()));
+                    builder.add(resolved);
+                } else if (ours != null || theirs != null) {
+                    DirCacheEntry side = ours != null ? ours : theirs;
+                    resolved.setFileMode(side.getFileMode());
+                    resolved.setObjectId(side.getObjectId());
+                    builder.add(resolved);
+                }
+                i = next;
+            }
+            builder.finish();
+            ObjectId treeId = result.writeTree(inserter);
+            inserter.flush();
+            return treeId;
         }
     }
 
-    private void autoResolveConflicts(String mode, Set<String> conflicts) throws IOException, GitAPIException {
-        Iterable<RevCommit> commits = gitCore.getGit().log().setMaxCount(1).call();
-        Iterator<RevCommit> commitIterator = commits.iterator();
-        if (!commitIterator.hasNext())
+    private void registerConflicts(Map<String, int[][]> conflicts) throws IOException {
+        Map<String, Integer> counts = new HashMap<>();
+        conflicts.forEach((localPath, chunks) -> counts.put(localPath, chunks.length));
+        getConflictRegistry().register(resolveHead(), counts);
+    }
+
+    /**
+     * <p>Разрешает конфликты слияния по режиму.</p>
+     * <p>Содержимое файлов вычисляется параллельно, записывается в одно дерево на основе коммита слияния
+     * и коммитится одним коммитом. Рабочий каталог и индекс обновляются только по разрешенным файлам.</p>
+     */
+    private void autoResolveConflicts(String mode, Set<String> conflicts) throws IOException {
+        Repository repo = gitCore.getRepository();
+        ObjectId headId = repo.resolve(Constants.HEAD);
+        if (headId == null)
             return;
-        RevCommit commit = commitIterator.next();
-        for (String localPath : conflicts) {
-            String content = resolveContentByMode(mode, commit, localPath);
-            if ("".equals(content))
-                continue;
-            FileSystemUtil.saveContentToFile(content, resolveAbsolutePath(localPath));
-            gitCore.add(localPath);
+        Map<String, byte[]> contents = resolveContentsByMode(mode, headId, conflicts);
+        try (N2oGitTreeEditor treeEditor = new N2oGitTreeEditor(repo, repo.getBranch())) {
+            for (Map.Entry<String, byte[]> content : contents.entrySet())
+                treeEditor.put(content.getKey(), content.getValue());
+            gitCore.commitTree(treeEditor.writeTree(), String.format(TEMPLATE_PREFIX.value, RESOLVED_AUTO_PREFIX + mode.toUpperCase()),
+                    SYSTEM_AUTHOR_NAME, headId);
         }
-        gitCore.commit(String.format(TEMPLATE_PREFIX.value, RESOLVED_AUTO_PREFIX + mode.toUpperCase()), SYSTEM_AUTHOR_NAME);
+        getConflictRegistry().resolve(contents.keySet());
     }
 
-    private String resolveContentByMode(String mode, RevCommit commit, String localPath) throws IOException {
-        if (OURS.getValue().equals(mode) || THEIRS.getValue().equals(mode)) {
-            return retrieveContent(commit.getParent(THEIRS.getValue().equals(mode) ? 1 : 0), localPath);
-        } else if (MERGE_OURS.getValue().equals(mode) || MERGE_THEIRS.getValue().equals(mode)) {
-            N2oConfigConflict configConflict = new N2oConfigConflict();
-            configConflict.setConflictContent(retrieveContent(commit, localPath));
-            N2oConfigConflictParser.restoreContentsByConflict(configConflict);
+    private Map<String, byte[]> resolveContentsByMode(String mode, ObjectId mergeCommitId, Set<String> conflicts) throws IOException {
+        ObjectId treeId;
+        try (N2oGitReadSession session = gitCore.openSession()) {
+            RevCommit commit = session.parseCommit(mergeCommitId);
+            if (OURS.getValue().equals(mode) || THEIRS.getValue().equals(mode)) {
+                int parent = THEIRS.getValue().equals(mode) ? 1 : 0;
+                if (commit.getParentCount() <= parent)
+                    return Collections.emptyMap();
+                treeId = session.parseCommit(commit.getParent(parent)).getTree();
+            } else {
+                treeId = commit.getTree();
+            }
+        }
+        int threads = Math.max(1, Math.min(conflictResolveThreads, conflicts.size()));
+        List<List<String>> batches = new ArrayList<>();
+        for (int i = 0; i < threads; i++)
+            batches.add(new ArrayList<>());
+        int i = 0;
+        for (String localPath : conflicts)
+            batches.get(i++ % threads).add(localPath);
+        Map<String, byte[]> contents = new TreeMap<>();
+        ExecutorService executor = Executors.newFixedThreadPool(threads);
+        try {
+            List<Future<Map<String, byte[]>>> futures = new ArrayList<>();
+            for (List<String> batch : batches)
+                futures.add(executor.submit(() -> resolveContentsByMode(mode, treeId, batch)));
+            for (Future<Map<String, byte[]>> future : futures)
+                contents.putAll(future.get());
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException(e);
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof IOException)
+                throw (IOException) e.getCause();
+            throw new IOException(e.getCause());
+        } finally {
+            executor.shutdownNow();
+        }
+        return contents;
+    }
+
+    /**
+     * Вычисляет разрешенное содержимое части файлов.
+     * Выполняется в потоке пула, поэтому читает объекты отдельной сессией чтения.
+     *
+     * @param mode       режим разрешения конфликтов
+     * @param treeId     дерево родителя(OURS, THEIRS) или коммита слияния(MERGE_OURS, MERGE_THEIRS)
+     * @param localPaths локальные пути к файлам
+     * @return содержимое файлов, разрешаемых автоматически
+     */
+    private Map<String, byte[]> resolveContentsByMode(String mode, ObjectId treeId, List<String> localPaths) throws IOException {
+        Map<String, byte[]> contents = new HashMap<>();
+        try (N2oGitReadSession session = gitCore.openSession()) {
+            for (String localPath : localPaths) {
+                byte[] content = resolveContentByMode(session, mode, treeId, localPath);
+                if (content != null)
+                    contents.put(localPath, content);
+            }
+        }
+        return contents;
+    }
+
+    /**
+     * @return содержимое файла, null - конфликт не разрешается автоматически
+     */
+    private byte[] resolveContentByMode(N2oGitReadSession session, String mode, ObjectId treeId, String localPath) throws IOException {
+        ObjectId blobId = session.findBlobInTree(treeId, localPath);
+        if (blobId == null)
+            return null;
+        ObjectLoader loader = session.open(blobId);
+        if (OURS.getValue().equals(mode) || THEIRS.getValue().equals(mode))
+            return loader.getSize() > 0 ? loader.getCachedBytes(Integer.MAX_VALUE) : null;
+        ByteArrayOutputStream out = new ByteArrayOutputStream((int) loader.getSize());
+        try (InputStream content = loader.openStream()) {
             if (MERGE_OURS.getValue().equals(mode))
-                return configConflict.getContent();
-            else if (MERGE_THEIRS.getValue().equals(mode))
-                return configConflict.getMergeContent();
+                N2oGitConflictScanner.scan(content, out, null);
+            else
+                N2oGitConflictScanner.scan(content, null, out);
         }
-        return "";
+        return out.size() > 0 ? out.toByteArray() : null;
     }
 
     private boolean isAutomaticMode(String mode) {
@@ -153,115 +554,354 @@ public class N2oGit {
     }
 
     public List<N2oConfigHistory> auditHistory(String localPath) {
-        List<N2oConfigHistory> histories = new ArrayList<>();
         try {
-            Iterable<RevCommit> revCommits = gitCore.getGit().log().addPath(localPath).call();
-            List<RevCommit> commits = new ArrayList<>();
-            revCommits.forEach(commits::add);
-            Repository repo = gitCore.getRepository();
-            addInitCommit(commits);
-            for (int i = 0; i < commits.size() - 1; i++) {
-                RevCommit newCommit = commits.get(i);
-                RevCommit oldCommit;
-                if (i == commits.size() - 2) {
-                    oldCommit = commits.get(i + 1);
-                } else {
-                    oldCommit = newCommit.getParents()[0];
-                }
-                AbstractTreeIterator oldTreeParser = prepareTreeParser(repo, oldCommit.getName());
-                AbstractTreeIterator newTreeParser = prepareTreeParser(repo, newCommit.getName());
-                List<DiffEntry> diff = gitCore.getGit().diff().setOldTree(oldTreeParser).setNewTree(newTreeParser).setPathFilter(PathFilter.create(localPath)).call();
-                for (DiffEntry entry : diff) {
-                    try (ByteArrayOutputStream outputStream = new ByteArrayOutputStream()) {
-                        DiffFormatter formatter = new DiffFormatter(outputStream);
-                        formatter.setRepository(repo);
-                        formatter.format(entry);
-                        fillHistory(histories, entry, localPath, newCommit, oldCommit, outputStream);
-                    } catch (IOException e) {
-                        throw new RuntimeException("Config audit history error.", e);
+            ObjectId snapshotId = gitCore.retrieveSnapshot();
+            List<N2oConfigHistory> histories = historyCache.get(localPath, snapshotId);
+            if (histories != null)
+                return histories;
+            try (N2oGitHistoryWalk historyWalk = openHistory(localPath, snapshotId)) {
+                histories = historyWalk.detach(historyWalk.readAll());
+            }
+            historyCache.put(localPath, snapshotId, histories);
+            return histories;
+        } catch (IOException e) {
+            throw new RuntimeException("Config audit history error.", e);
+        }
+    }
+
+    /**
+     * Возвращает страницу истории изменений файла
+     *
+     * @param localPath локальный путь к файлу
+     * @param offset    количество пропускаемых записей
+     * @param limit     максимальное количество записей
+     * @return записи истории, начиная с последнего изменения
+     */
+    public List<N2oConfigHistory> auditHistory(String localPath, int offset, int limit) {
+        try {
+            ObjectId snapshotId = gitCore.retrieveSnapshot();
+            List<N2oConfigHistory> histories = historyCache.get(localPath, snapshotId);
+            if (histories != null)
+                return subList(histories, offset, limit);
+            try (N2oGitHistoryWalk historyWalk = openHistory(localPath, snapshotId)) {
+                return historyWalk.read(offset, limit);
+            }
+        } catch (IOException e) {
+            throw new RuntimeException("Config audit history error.", e);
+        }
+    }
+
+    /**
+     * Возвращает страницу истории изменений файла, следующую за указанным коммитом
+     *
+     * @param localPath   локальный путь к файлу
+     * @param afterCommit код последней записи предыдущей страницы, null - первая страница
+     * @param limit       максимальное количество записей
+     * @return записи истории, пустой список - коммит не найден в истории файла
+     */
+    public List<N2oConfigHistory> auditHistory(String localPath, String afterCommit, int limit) {
+        try {
+            ObjectId snapshotId = gitCore.retrieveSnapshot();
+            List<N2oConfigHistory> histories = historyCache.get(localPath, snapshotId);
+            if (histories != null) {
+                int offset = 0;
+                if (afterCommit != null) {
+                    offset = -1;
+                    for (int i = 0; i < histories.size(); i++) {
+                        if (afterCommit.equals(histories.get(i).getCode()))
+                            offset = i + 1;
                     }
                 }
+                return offset < 0 ? new ArrayList<>() : subList(histories, offset, limit);
+            }
+            try (N2oGitHistoryWalk historyWalk = openHistory(localPath, snapshotId)) {
+                if (afterCommit != null && !historyWalk.seek(afterCommit))
+                    return new ArrayList<>();
+                return historyWalk.read(0, limit);
             }
-        } catch (GitAPIException | IOException e) {
+        } catch (IOException e) {
+            throw new RuntimeException("Config audit history error.", e);
+        }
+    }
+
+    private static List<N2oConfigHistory> subList(List<N2oConfigHistory> histories, int offset, int limit) {
+        int from = Math.min(offset, histories.size());
+        int to = (int) Math.min((long) from + limit, histories.size());
+        return new ArrayList<>(histories.subList(from, to));
+    }
+
+    /**
+     * Возвращает историю изменений файла в виде потока.
+     * Записи читаются по мере обращения, поток необходимо закрыть.
+     *
+     * @param localPath локальный путь к файлу
+     * @return поток записей истории, начиная с последнего изменения
+     */
+    public Stream<N2oConfigHistory> streamHistory(String localPath) {
+        N2oGitHistoryWalk historyWalk;
+        try {
+            historyWalk = openHistory(localPath);
+        } catch (IOException e) {
             throw new RuntimeException("Config audit history error.", e);
         }
-        return histories;
+        return StreamSupport.stream(Spliterators.spliteratorUnknownSize(historyWalk, Spliterator.ORDERED | Spliterator.NONNULL), false)
+                .onClose(historyWalk::close);
+    }
+
+    private N2oGitHistoryWalk openHistory(String localPath) throws IOException {
+        return openHistory(localPath, gitCore.retrieveSnapshot());
+    }
+
+    /**
+     * Открывает обход истории файла на снимке серверной ветки, без блокировки записи
+     */
+    private N2oGitHistoryWalk openHistory(String localPath, ObjectId snapshotId) throws IOException {
+        List<ObjectId> commitIds = gitCore.retrievePathCommits(localPath, snapshotId);
+        if (commitIds != null)
+            return new N2oGitHistoryWalk(gitCore.getRepository(), localPath, commitIds, gitCore.retrieveInitCommit());
+        return new N2oGitHistoryWalk(gitCore.getRepository(), localPath, snapshotId, gitCore.retrieveInitCommit());
+    }
+
+    private ObjectId resolveHead() throws IOException {
+        return gitCore.getRepository().resolve(Constants.HEAD);
     }
 
-    private void addInitCommit(List<RevCommit> commits) throws GitAPIException, IOException {
-        List<RevCommit> initCommits = new ArrayList<>();
-        Iterable<RevCommit> initCommitIter = gitCore.getGit().log().addPath(".gitignore").call();
-        initCommitIter.forEach(initCommits::add);
-        if (initCommits.size() != 0)
-            commits.add(initCommits.get(initCommits.size() - 1));
+    private ObjectId currentSnapshot() {
+        try {
+            return gitCore.retrieveSnapshot();
+        } catch (IOException e) {
+            throw new RuntimeException("Config audit history cache error.", e);
+        }
     }
 
-    private void fillHistory(List<N2oConfigHistory> histories, DiffEntry entry, String localPath, RevCommit newCommit, RevCommit oldCommit, ByteArrayOutputStream outputStream) throws IOException {
-        N2oConfigHistory history = new N2oConfigHistory();
-        history.setId(newCommit.getName() + "_" + entry.toString());
-        history.setCode(newCommit.getName());
-        history.setLocalPath(localPath);
-        history.setDiff(newCommit.toString() + "\n" + new String(outputStream.toByteArray(), DEFAULT_FILE_ENCODING));
-        PersonIdent authorIdent = newCommit.getAuthorIdent();
-        history.setAuthor(authorIdent.getName());
-        history.setMessage(newCommit.getFullMessage());
-        history.setDate(new SimpleDateFormat().format(authorIdent.getWhen()));
-        history.setContent(retrieveContent(newCommit, localPath));
-        history.setPreviousContent(retrieveContent(oldCommit, localPath));
-        histories.add(history);
+    /**
+     * Обновляет индекс изменений и переносит кэш истории на текущий снимок серверной ветки,
+     * удаляя историю файлов, измененных с указанного снимка
+     *
+     * @param oldSnapshotId снимок до коммитов
+     */
+    private void advanceHistoryCache(ObjectId oldSnapshotId) {
+        try {
+            gitCore.updatePathIndex();
+            if (!historyCache.isEnabled())
+                return;
+            ObjectId newSnapshotId = gitCore.retrieveSnapshot();
+            historyCache.advance(oldSnapshotId, newSnapshotId, gitCore.retrieveChangedPaths(oldSnapshotId, newSnapshotId));
+        } catch (IOException e) {
+            throw new RuntimeException("Config audit history cache error.", e);
+        }
     }
 
-    private static AbstractTreeIterator prepareTreeParser(Repository repo, String ref) throws IOException {
-        RevWalk walk = new RevWalk(repo);
-        ObjectId objectId = repo.resolve(ref);
-        RevCommit commit = walk.parseCommit(objectId);
-        RevTree tree = walk.parseTree(commit.getTree().getId());
-        CanonicalTreeParser oldTreeParser = new CanonicalTreeParser();
-        try (ObjectReader oldReader = repo.newObjectReader()) {
-            oldTreeParser.reset(oldReader, tree.getId());
+    /**
+     * Строит индекс изменений файлов заново
+     */
+    public void rebuildPathIndex() {
+        try {
+            gitCore.rebuildPathIndex();
+        } catch (IOException e) {
+            throw new RuntimeException("Config audit path index error.", e);
         }
-        walk.dispose();
-        return oldTreeParser;
     }
 
+    /**
+     * <p>Возвращает последний конфликт файла.</p>
+     * <p>Поиск останавливается на первом коммите, изменявшем файл. Содержимое файла до конфликта, в конфликте,
+     * в серверной и системной версиях читается одним обходом четырех деревьев в одной сессии чтения.</p>
+     *
+     * @param localPath локальный путь к файлу
+     * @return конфликт файла
+     */
     public N2oConfigConflict retrieveConflictFromLog(String localPath) {
         N2oConfigConflict configConflict = new N2oConfigConflict();
-        try {
-            Iterable<RevCommit> revCommits = gitCore.getGit().log().all().addPath(localPath).call();
-            if (revCommits == null)
+        try (N2oGitReadSession session = gitCore.openSession()) {
+            RevWalk revWalk = session.getRevWalk();
+            RevCommit conflictCommit = retrieveLastCommit(session, localPath);
+            if (conflictCommit == null)
                 return configConflict;
-            List<RevCommit> commits = new ArrayList<>();
-            revCommits.forEach(commits::add);
-            RevCommit lastCommit = commits.get(0);
-            ObjectId commitId = gitCore.getRepository().resolve(lastCommit.getName());
-            RevWalk revWalk = new RevWalk(gitCore.getRepository());
-            RevCommit conflictCommit = revWalk.parseCommit(commitId);
-            RevCommit[] parents = conflictCommit.getParents();
-            RevCommit origin;
-            RevCommit merge;
-            if (parents.length > 1) {
-                origin = parents[0];
-                merge = parents[1];
-            } else {
-                origin = parents[0];
-                merge = conflictCommit;
-            }
-            RevCommit commitBeforeConflict = revWalk.parseCommit(gitCore.getRepository().resolve(merge.getName())).getParent(0);
+            RevCommit origin = conflictCommit.getParentCount() > 0 ? conflictCommit.getParent(0) : null;
+            RevCommit merge = conflictCommit.getParentCount() > 1 ? conflictCommit.getParent(1) : conflictCommit;
+            revWalk.parseHeaders(merge);
+            RevCommit commitBeforeConflict = merge.getParentCount() > 0 ? merge.getParent(0) : null;
+            String[] contents = retrieveContents(session, localPath, commitBeforeConflict, conflictCommit, origin, merge);
             configConflict.setId(conflictCommit.getName());
-            configConflict.setParentContent(retrieveContent(commitBeforeConflict, localPath));
-            configConflict.setConflictContent(retrieveContent(conflictCommit, localPath));
-            configConflict.setContent(retrieveContent(origin, localPath));
-            configConflict.setMergeContent(retrieveContent(merge, localPath));
-        } catch (IOException | GitAPIException e) {
+            configConflict.setParentContent(contents[0]);
+            configConflict.setConflictContent(contents[1]);
+            configConflict.setContent(contents[2]);
+            configConflict.setMergeContent(contents[3]);
+        } catch (IOException e) {
             throw new RuntimeException("Config audit retrieve conflict from log error.", e);
         }
         return configConflict;
     }
 
+    /**
+     * Находит последний коммит, изменявший файл, во всех ветках.
+     * Родители найденного коммита не переписываются и могут использоваться без повторного разбора.
+     */
+    private RevCommit retrieveLastCommit(N2oGitReadSession session, String localPath) throws IOException {
+        RevWalk revWalk = session.getRevWalk();
+        List<ObjectId> indexedCommitIds = isSystemMerged(session) ? gitCore.retrievePathCommits(localPath) : null;
+        if (indexedCommitIds != null)
+            return indexedCommitIds.isEmpty() ? null : revWalk.parseCommit(indexedCommitIds.get(0));
+        revWalk.setRewriteParents(false);
+        revWalk.setTreeFilter(AndTreeFilter.create(PathFilter.create(localPath), TreeFilter.ANY_DIFF));
+        for (Ref ref : gitCore.getRepository().getAllRefs().values()) {
+            if (ref.getObjectId() == null)
+                continue;
+            RevObject object = revWalk.peel(revWalk.parseAny(ref.getObjectId()));
+            if (object instanceof RevCommit)
+                revWalk.markStart((RevCommit) object);
+        }
+        return revWalk.next();
+    }
+
+    /**
+     * Читает содержимое файла в нескольких коммитах одним обходом деревьев
+     *
+     * @return содержимое файла в каждом коммите, пустая строка - коммита или файла нет
+     */
+    private static String[] retrieveContents(N2oGitReadSession session, String localPath, RevCommit... commits) throws IOException {
+        RevWalk revWalk = session.getRevWalk();
+        String[] contents = new String[commits.length];
+        Arrays.fill(contents, "");
+        TreeWalk treeWalk = session.getTreeWalk();
+        for (RevCommit commit : commits) {
+            if (commit == null) {
+                treeWalk.addTree(new EmptyTreeIterator());
+            } else {
+                revWalk.parseHeaders(commit);
+                treeWalk.addTree(commit.getTree());
+            }
+        }
+        treeWalk.setRecursive(true);
+        treeWalk.setFilter(PathFilter.create(localPath));
+        if (!treeWalk.next())
+            return contents;
+        for (int i = 0; i < commits.length; i++) {
+            ObjectId blobId = treeWalk.getObjectId(i);
+            if (!ObjectId.zeroId().equals(blobId))
+                contents[i] = session.readContent(blobId);
+        }
+        return contents;
+    }
+
+    /**
+     * Определяет, что все коммиты системной ветки достижимы из серверной
+     * и поиск по всем веткам может выполняться по индексу изменений серверной ветки
+     */
+    private boolean isSystemMerged(N2oGitReadSession session) throws IOException {
+        Repository repo = gitCore.getRepository();
+        Ref system = repo.exactRef(Constants.R_HEADS + N2oGitConstant.Branch.SYSTEM_BRANCH_NAME);
+        Ref server = repo.exactRef(Constants.R_HEADS + N2oGitConstant.Branch.SERVER_BRANCH_NAME);
+        if (system == null || server == null)
+            return false;
+        return session.isMergedInto(system.getObjectId(), server.getObjectId());
+    }
+
     public String retrieveGraph() {
-        return drawGraph()
-                .stream()
-                .reduce("", (s1, s2) -> s1 + N2oGitConstant.DEFAULT_LINE_END + s2);
+        StringBuilder graph = new StringBuilder();
+        retrieveGraph(graph, 0, null);
+        return graph.toString();
+    }
+
+    /**
+     * Строит граф коммитов в заданном окне
+     *
+     * @param out      вывод графа
+     * @param maxCount максимальное количество коммитов, 0 - без ограничения
+     * @param since    дата, с которой показываются коммиты, null - без ограничения
+     */
+    public void retrieveGraph(Appendable out, int maxCount, Date since) {
+        try {
+            getGraph().render(out, maxCount, since);
+        } catch (IOException e) {
+            throw new RuntimeException("Config audit draw graph error.", e);
+        }
+    }
+
+    /**
+     * Возвращает страницу графа коммитов в виде модели
+     *
+     * @param offset количество пропускаемых коммитов
+     * @param limit  максимальное количество коммитов
+     * @return коммиты графа, начиная с последнего
+     */
+    public List<N2oGitGraphCommit> retrieveGraphCommits(int offset, int limit) {
+        try {
+            return getGraph().retrieveCommits(offset, limit);
+        } catch (IOException e) {
+            throw new RuntimeException("Config audit draw graph error.", e);
+        }
+    }
+
+    public synchronized N2oGitGraph getGraph() {
+        if (graph == null)
+            graph = new N2oGitGraph(gitCore.getRepository());
+        return graph;
+    }
+
+    /**
+     * Определяет, что системная ветка соответствует версии приложения и набору системных файлов,
+     * сохраненным после последнего обновления, и уже слита в серверную ветку.
+     *
+     * @param appVersion  версия приложения
+     * @param fingerprint отпечаток набора системных файлов, null - отпечаток неизвестен
+     * @return true - обновление системной ветки не требуется
+     */
+    public boolean isSystemUpToDate(String appVersion, String fingerprint) {
+        File stateFile = getStateFile();
+        if (fingerprint == null || !stateFile.exists())
+            return false;
+        Properties state = new Properties();
+        try (InputStream inputStream = new FileInputStream(stateFile)) {
+            state.load(inputStream);
+        } catch (IOException e) {
+            logger.warn(e.getMessage(), e);
+            return false;
+        }
+        if (!String.valueOf(appVersion).equals(state.getProperty(STATE_APP_VERSION))
+                || !fingerprint.equals(state.getProperty(STATE_FINGERPRINT)))
+            return false;
+        Repository repo = gitCore.getRepository();
+        try (N2oGitReadSession session = gitCore.openSession()) {
+            Ref system = repo.exactRef(Constants.R_HEADS + N2oGitConstant.Branch.SYSTEM_BRANCH_NAME);
+            Ref server = repo.exactRef(Constants.R_HEADS + N2oGitConstant.Branch.SERVER_BRANCH_NAME);
+            if (system == null || server == null || !system.getObjectId().name().equals(state.getProperty(STATE_SYSTEM_COMMIT)))
+                return false;
+            return session.isMergedInto(system.getObjectId(), server.getObjectId());
+        } catch (IOException e) {
+            logger.warn(e.getMessage(), e);
+            return false;
+        }
+    }
+
+    /**
+     * Сохраняет версию приложения и отпечаток набора системных файлов после обновления системной ветки
+     *
+     * @param appVersion  версия приложения
+     * @param fingerprint отпечаток набора системных файлов, null - отпечаток неизвестен и не сохраняется
+     */
+    public void saveSystemState(String appVersion, String fingerprint) {
+        if (fingerprint == null)
+            return;
+        Properties state = new Properties();
+        try {
+            Ref system = gitCore.getRepository().exactRef(Constants.R_HEADS + N2oGitConstant.Branch.SYSTEM_BRANCH_NAME);
+            if (system == null)
+                return;
+            state.setProperty(STATE_APP_VERSION, String.valueOf(appVersion));
+            state.setProperty(STATE_FINGERPRINT, fingerprint);
+            state.setProperty(STATE_SYSTEM_COMMIT, system.getObjectId().name());
+            try (OutputStream outputStream = new FileOutputStream(getStateFile())) {
+                state.store(outputStream, null);
+            }
+        } catch (IOException e) {
+            logger.warn(e.getMessage(), e);
+        }
+    }
+
+    private File getStateFile() {
+        return new File(gitCore.getRepository().getDirectory(), STATE_FILE_NAME);
     }
 
     public boolean isInit() {
@@ -274,13 +914,116 @@ public class N2oGit {
 
     public void setGitCore(N2oGitCore gitCore) {
         this.gitCore = gitCore;
+        synchronized (this) {
+            conflictRegistry = null;
+            graph = null;
+        }
     }
 
     public N2oGitCore getGitCore() {
         return gitCore;
     }
 
+    /**
+     * Возвращает блокировку записи ядра, под которой выполняются коммиты, слияния и изменения рабочего каталога
+     *
+     * @return блокировка записи
+     */
+    public Lock getWriteLock() {
+        return gitCore.getWriteLock();
+    }
+
+    /**
+     * Возвращает все неразрешенные конфликты из реестра конфликтов
+     *
+     * @return неизменяемый список конфликтов
+     */
+    public List<N2oGitOpenConflict> retrieveOpenConflicts() {
+        return getConflictRegistry().list();
+    }
+
+    public synchronized N2oGitConflictRegistry getConflictRegistry() {
+        if (conflictRegistry == null) {
+            Repository repo = gitCore.getRepository();
+            conflictRegistry = new N2oGitConflictRegistry(repo, new File(repo.getDirectory(), CONFLICT_FILE_NAME),
+                    Constants.R_HEADS + N2oGitConstant.Branch.SERVER_BRANCH_NAME);
+        }
+        return conflictRegistry;
+    }
+
+    public N2oGitHistoryCache getHistoryCache() {
+        return historyCache;
+    }
+
+    public void setHistoryCache(N2oGitHistoryCache historyCache) {
+        this.historyCache = historyCache;
+    }
+
+    public synchronized N2oGitCommitQueue getCommitQueue() {
+        if (commitQueue == null && N2oGitConstant.asyncCommitEnabled)
+            commitQueue = new N2oGitCommitQueue(this, N2oGitConstant.asyncCommitCapacity, N2oGitConstant.asyncCommitWindow);
+        return commitQueue;
+    }
+
+    public synchronized void setCommitQueue(N2oGitCommitQueue commitQueue) {
+        this.commitQueue = commitQueue;
+    }
+
     public void closeRepo() {
+        N2oGitCommitQueue queue;
+        synchronized (this) {
+            queue = commitQueue;
+            commitQueue = null;
+            conflictRegistry = null;
+            graph = null;
+        }
+        if (queue != null)
+            queue.close();
         gitCore.closeRepo();
     }
+
+    /**
+     * Изменение дерева коммита по файлам рабочего каталога, аналог {@code git add} для добавленных и измененных файлов
+     * и {@code git add -u} для удаленных. Состояние файлов определяется относительно базового коммита каждой попытки.
+     */
+    private class OptimisticEdit implements N2oGitTreeEditor.Edit {
+        private final Collection<N2oGitChange> changes;
+        private final Map<N2oGitPathState, String> messages = new LinkedHashMap<>();
+        private ObjectId baseCommitId;
+
+        private OptimisticEdit(List<N2oGitChange> changes) {
+            Map<String, N2oGitChange> staged = new LinkedHashMap<>();
+            for (N2oGitChange change : changes) {
+                if (change.getLocalPath() != null && !change.getLocalPath().equals(""))
+                    staged.put(change.getLocalPath(), change);
+            }
+            this.changes = staged.values();
+        }
+
+        @Override
+        public String apply(N2oGitTreeEditor editor) throws IOException {
+            messages.clear();
+            baseCommitId = editor.getBaseCommitId();
+            for (N2oGitChange change : changes) {
+                String localPath = change.getLocalPath();
+                File file = new File(gitCore.getRepository().getWorkTree(), localPath);
+                ObjectId baseId = editor.getBaseId(localPath);
+                ObjectId newId = baseId;
+                if (file.isFile()) {
+                    newId = editor.put(localPath, file);
+                } else if (change.isRemoved()) {
+                    editor.remove(localPath);
+                    newId = null;
+                }
+                N2oGitPathState state = new N2oGitPathState(localPath, baseId, newId);
+                if (state.isClean())
+                    continue;
+                if (change.isRemoved())
+                    messages.put(state, buildMessageForRemove(state, change.getStatus()) + localPath);
+                else
+                    messages.put(state, buildMessage(state, change.getStatus()));
+            }
+            return messages.isEmpty() ? null : String.join(DEFAULT_LINE_END, messages.values());
+        }
+    }
 }
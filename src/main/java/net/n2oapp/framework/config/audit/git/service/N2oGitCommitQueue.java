@@ -0,0 +1,194 @@
+package net.n2oapp.framework.config.audit.git.service;
+
+import net.n2oapp.framework.api.exception.N2oException;
+import net.n2oapp.framework.config.audit.git.model.N2oGitChange;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * <p>Очередь асинхронных коммитов.</p>
+ * <p>Изменения, поступившие в течение окна группировки, объединяются в один коммит на каждого автора.</p>
+ * <p>Коммиты выполняются единственным потоком записи.</p>
+ */
+public class N2oGitCommitQueue {
+    private static Logger logger = LoggerFactory.getLogger(N2oGitCommitQueue.class);
+    private final N2oGit n2oGit;
+    private final BlockingQueue<N2oGitChange> queue;
+    private final long window;
+    private final Object monitor = new Object();
+    private final Thread writer;
+    private long submitted;
+    private long processed;
+    private boolean closed;
+    private volatile boolean running = true;
+
+    /**
+     * @param n2oGit   сервис, выполняющий коммиты
+     * @param capacity максимальное количество изменений в очереди
+     * @param window   окно группировки изменений в миллисекундах
+     */
+    public N2oGitCommitQueue(N2oGit n2oGit, int capacity, long window) {
+        this.n2oGit = n2oGit;
+        this.queue = new ArrayBlockingQueue<>(capacity);
+        this.window = window;
+        this.writer = new Thread(this::process, "n2o-config-audit-writer");
+        this.writer.setDaemon(true);
+        this.writer.start();
+    }
+
+    /**
+     * Ставит изменение в очередь. Блокирует вызывающий поток, если очередь заполнена.
+     *
+     * @param change изменение файла конфигурации
+     */
+    public void submit(N2oGitChange change) {
+        synchronized (monitor) {
+            if (closed)
+                throw new IllegalStateException("Config audit commit queue is closed.");
+            submitted++;
+        }
+        try {
+            queue.put(change);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            synchronized (monitor) {
+                submitted--;
+                monitor.notifyAll();
+            }
+            throw new N2oException(e);
+        }
+    }
+
+    /**
+     * Ожидает коммита всех изменений, поставленных в очередь до вызова метода.
+     */
+    public void flush() {
+        try {
+            flush(0);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new N2oException(e);
+        }
+    }
+
+    /**
+     * Ожидает коммита всех изменений, поставленных в очередь до вызова метода.
+     *
+     * @param timeout максимальное время ожидания в миллисекундах, 0 - без ограничения
+     * @return true - все изменения закоммичены, false - истекло время ожидания
+     * @throws InterruptedException ожидание прервано
+     */
+    public boolean flush(long timeout) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + timeout;
+        synchronized (monitor) {
+            long target = submitted;
+            while (processed < target) {
+                if (timeout <= 0) {
+                    monitor.wait();
+                } else {
+                    long rest = deadline - System.currentTimeMillis();
+                    if (rest <= 0)
+                        return false;
+                    monitor.wait(rest);
+                }
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Коммитит оставшиеся изменения и останавливает поток записи.
+     * Изменения, принятые до закрытия, коммитятся, после закрытия новые изменения не принимаются.
+     */
+    public void close() {
+        synchronized (monitor) {
+            if (closed)
+                return;
+            closed = true;
+        }
+        flush();
+        running = false;
+        writer.interrupt();
+        try {
+            writer.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    public boolean isRunning() {
+        return running;
+    }
+
+    private void process() {
+        try {
+            while (running) {
+                List<N2oGitChange> batch = new ArrayList<>();
+                try {
+                    batch.add(queue.take());
+                    long deadline = System.currentTimeMillis() + window;
+                    long rest;
+                    while ((rest = deadline - System.currentTimeMillis()) > 0) {
+                        N2oGitChange change = queue.poll(rest, TimeUnit.MILLISECONDS);
+                        if (change == null)
+                            break;
+                        batch.add(change);
+                    }
+                } catch (InterruptedException e) {
+                    if (batch.isEmpty())
+                        continue;
+                }
+                queue.drainTo(batch);
+                commit(batch);
+            }
+        } finally {
+            fail();
+        }
+    }
+
+    /**
+     * Закрывает очередь при остановке потока записи, чтобы отправители и ожидающие коммита не зависли.
+     * Изменения, оставшиеся в очереди, не коммитятся.
+     */
+    private void fail() {
+        synchronized (monitor) {
+            closed = true;
+            running = false;
+            List<N2oGitChange> rest = new ArrayList<>();
+            queue.drainTo(rest);
+            if (!rest.isEmpty())
+                logger.error("Config audit commit queue is stopped, {} changes are not committed.", rest.size());
+            processed = submitted;
+            monitor.notifyAll();
+        }
+    }
+
+    private void commit(List<N2oGitChange> batch) {
+        Map<String, List<N2oGitChange>> changesByAuthor = new LinkedHashMap<>();
+        for (N2oGitChange change : batch) {
+            changesByAuthor.computeIfAbsent(change.getAuthor(), author -> new ArrayList<>()).add(change);
+        }
+        try {
+            for (Map.Entry<String, List<N2oGitChange>> entry : changesByAuthor.entrySet()) {
+                try {
+                    n2oGit.commit(entry.getKey(), entry.getValue());
+                } catch (Throwable e) {
+                    logger.error("Config audit async commit error.", e);
+                }
+            }
+        } finally {
+            synchronized (monitor) {
+                processed += batch.size();
+                monitor.notifyAll();
+            }
+        }
+    }
+}
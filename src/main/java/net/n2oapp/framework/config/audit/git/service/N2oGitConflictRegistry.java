@@ -0,0 +1,169 @@
+package net.n2oapp.framework.config.audit.git.service;
+
+import net.n2oapp.framework.config.audit.git.core.N2oGitReadSession;
+import net.n2oapp.framework.config.audit.git.model.N2oGitOpenConflict;
+import net.n2oapp.framework.config.audit.git.util.N2oGitConflictScanner;
+import org.eclipse.jgit.lib.ObjectId;
+import org.eclipse.jgit.lib.Repository;
+import org.eclipse.jgit.treewalk.TreeWalk;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.*;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.*;
+
+/**
+ * <p>Реестр неразрешенных конфликтов.</p>
+ * <p>Конфликты заносятся в реестр при слиянии и удаляются при коммите разрешения конфликта или удалении файла.
+ * Реестр хранится в каталоге .git в виде properties: путь файла - коммит слияния и количество конфликтов.
+ * Если файла реестра нет, реестр один раз строится по содержимому вершины серверной ветки,
+ * коммит слияния у таких конфликтов неизвестен.</p>
+ * <p>Реестр записывается во временный файл рядом с файлом реестра и атомарно переименовывается,
+ * поэтому при сбое записи сохраняется предыдущее содержимое реестра.</p>
+ */
+public class N2oGitConflictRegistry {
+    private static Logger logger = LoggerFactory.getLogger(N2oGitConflictRegistry.class);
+    private static final String SEPARATOR = ":";
+    private final Repository repo;
+    private final File file;
+    private final String serverRef;
+    private final Map<String, N2oGitOpenConflict> conflicts = new TreeMap<>();
+    private volatile List<N2oGitOpenConflict> snapshot;
+
+    /**
+     * @param repo      git репозиторий
+     * @param file      файл реестра
+     * @param serverRef серверная ветка, по которой строится реестр при отсутствии файла
+     */
+    public N2oGitConflictRegistry(Repository repo, File file, String serverRef) {
+        this.repo = repo;
+        this.file = file;
+        this.serverRef = serverRef;
+    }
+
+    /**
+     * Возвращает все неразрешенные конфликты.
+     * Список формируется при изменении реестра, поэтому не требует обхода репозитория.
+     *
+     * @return неизменяемый список конфликтов, упорядоченный по пути файла
+     */
+    public List<N2oGitOpenConflict> list() {
+        List<N2oGitOpenConflict> current = snapshot;
+        if (current == null) {
+            synchronized (this) {
+                load();
+                current = snapshot;
+            }
+        }
+        return current;
+    }
+
+    /**
+     * Заносит конфликты слияния в реестр
+     *
+     * @param mergeCommitId коммит слияния
+     * @param counts        количество конфликтов по путям файлов
+     */
+    public synchronized void register(ObjectId mergeCommitId, Map<String, Integer> counts) {
+        if (counts.isEmpty())
+            return;
+        load();
+        for (Map.Entry<String, Integer> count : counts.entrySet())
+            conflicts.put(count.getKey(), new N2oGitOpenConflict(count.getKey(), mergeCommitId.name(), count.getValue()));
+        store();
+    }
+
+    /**
+     * Удаляет разрешенные конфликты из реестра
+     *
+     * @param localPaths пути файлов
+     */
+    public synchronized void resolve(Collection<String> localPaths) {
+        load();
+        boolean changed = false;
+        for (String localPath : localPaths)
+            changed |= conflicts.remove(localPath) != null;
+        if (changed)
+            store();
+    }
+
+    public synchronized boolean contains(String localPath) {
+        load();
+        return conflicts.containsKey(localPath);
+    }
+
+    private void load() {
+        if (snapshot != null)
+            return;
+        if (!file.exists()) {
+            scan();
+            store();
+            return;
+        }
+        Properties properties = new Properties();
+        try (InputStream inputStream = new FileInputStream(file)) {
+            properties.load(inputStream);
+            for (String localPath : properties.stringPropertyNames()) {
+                String value = properties.getProperty(localPath);
+                int separator = value.lastIndexOf(SEPARATOR);
+                String mergeCommitId = value.substring(0, separator);
+                conflicts.put(localPath, new N2oGitOpenConflict(localPath, mergeCommitId.isEmpty() ? null : mergeCommitId,
+                        Integer.parseInt(value.substring(separator + 1))));
+            }
+        } catch (IOException | RuntimeException e) {
+            logger.warn("Config audit conflict registry is corrupted, rebuilding.", e);
+            conflicts.clear();
+            scan();
+            store();
+            return;
+        }
+        updateSnapshot();
+    }
+
+    private void scan() {
+        try (N2oGitReadSession session = new N2oGitReadSession(repo)) {
+            ObjectId headId = repo.resolve(serverRef);
+            if (headId == null)
+                return;
+            TreeWalk treeWalk = session.getTreeWalk();
+            treeWalk.addTree(session.parseCommit(headId).getTree());
+            treeWalk.setRecursive(true);
+            while (treeWalk.next()) {
+                int count;
+                try (InputStream content = session.openStream(treeWalk.getObjectId(0))) {
+                    count = N2oGitConflictScanner.countConflict(content);
+                }
+                if (count > 0)
+                    conflicts.put(treeWalk.getPathString(), new N2oGitOpenConflict(treeWalk.getPathString(), null, count));
+            }
+        } catch (IOException e) {
+            logger.warn(e.getMessage(), e);
+        }
+    }
+
+    private void store() {
+        Properties properties = new Properties();
+        for (N2oGitOpenConflict conflict : conflicts.values())
+            properties.setProperty(conflict.getLocalPath(), (conflict.getMergeCommitId() != null ? conflict.getMergeCommitId() : "")
+                    + SEPARATOR + conflict.getCount());
+        File temp = null;
+        try {
+            temp = File.createTempFile(file.getName(), ".tmp", file.getParentFile());
+            try (OutputStream outputStream = new FileOutputStream(temp)) {
+                properties.store(outputStream, null);
+            }
+            Files.move(temp.toPath(), file.toPath(), StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+        } catch (IOException e) {
+            logger.warn(e.getMessage(), e);
+            if (temp != null)
+                temp.delete();
+        }
+        updateSnapshot();
+    }
+
+    private void updateSnapshot() {
+        snapshot = Collections.unmodifiableList(new ArrayList<>(conflicts.values()));
+    }
+}
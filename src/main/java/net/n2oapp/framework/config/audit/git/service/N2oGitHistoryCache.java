@@ -0,0 +1,175 @@
+package net.n2oapp.framework.config.audit.git.service;
+
+import net.n2oapp.framework.config.audit.git.model.N2oGitHistory;
+import net.n2oapp.framework.config.register.audit.model.N2oConfigHistory;
+import org.eclipse.jgit.lib.ObjectId;
+
+import java.util.*;
+
+/**
+ * <p>Кэш истории изменений файлов.</p>
+ * <p>Запись кэша соответствует паре (локальный путь, HEAD, от которого построена история).
+ * После коммита записи файлов, не затронутых коммитом, переносятся на новый HEAD,
+ * записи затронутых файлов удаляются.</p>
+ * <p>Размер ограничивается количеством записей и оценкой занимаемой памяти, вытесняются давно не запрошенные записи.
+ * Хранятся только сведения о коммитах, содержимое версий файла читается отложенно в копиях записей.</p>
+ */
+public class N2oGitHistoryCache {
+    private static final int ROW_OVERHEAD = 256;
+    private final int maxEntries;
+    private final long maxBytes;
+    private final LinkedHashMap<String, Entry> entries = new LinkedHashMap<>(16, 0.75f, true);
+    private long bytes;
+    private long hitCount;
+    private long missCount;
+    private long evictionCount;
+
+    /**
+     * @param maxEntries максимальное количество файлов в кэше, 0 - кэш отключен
+     * @param maxBytes   максимальный оценочный размер кэша в байтах
+     */
+    public N2oGitHistoryCache(int maxEntries, long maxBytes) {
+        this.maxEntries = maxEntries;
+        this.maxBytes = maxBytes;
+    }
+
+    public boolean isEnabled() {
+        return maxEntries > 0 && maxBytes > 0;
+    }
+
+    /**
+     * Возвращает историю изменений файла, построенную от указанного HEAD
+     *
+     * @param localPath локальный путь к файлу
+     * @param headId    текущий HEAD
+     * @return копия записей истории, null - истории нет в кэше
+     */
+    public synchronized List<N2oConfigHistory> get(String localPath, ObjectId headId) {
+        Entry entry = entries.get(localPath);
+        if (entry == null || !entry.headId.equals(headId)) {
+            missCount++;
+            return null;
+        }
+        hitCount++;
+        return copy(entry.histories);
+    }
+
+    /**
+     * Помещает историю изменений файла в кэш
+     *
+     * @param localPath локальный путь к файлу
+     * @param headId    HEAD, от которого построена история
+     * @param histories записи истории
+     */
+    public synchronized void put(String localPath, ObjectId headId, List<N2oConfigHistory> histories) {
+        if (!isEnabled() || headId == null)
+            return;
+        long weight = weigh(localPath, histories);
+        if (weight > maxBytes)
+            return;
+        remove(localPath);
+        entries.put(localPath, new Entry(headId.copy(), copy(histories), weight));
+        bytes += weight;
+        evict();
+    }
+
+    /**
+     * Переносит кэш на новый HEAD после коммитов
+     *
+     * @param oldHeadId    HEAD до коммитов
+     * @param newHeadId    HEAD после коммитов
+     * @param touchedPaths пути файлов, измененных коммитами, null - неизвестны
+     */
+    public synchronized void advance(ObjectId oldHeadId, ObjectId newHeadId, Set<String> touchedPaths) {
+        if (oldHeadId == null || newHeadId == null || oldHeadId.equals(newHeadId))
+            return;
+        Iterator<Map.Entry<String, Entry>> iterator = entries.entrySet().iterator();
+        while (iterator.hasNext()) {
+            Map.Entry<String, Entry> mapEntry = iterator.next();
+            Entry entry = mapEntry.getValue();
+            if (!entry.headId.equals(oldHeadId))
+                continue;
+            if (touchedPaths == null || touchedPaths.contains(mapEntry.getKey())) {
+                iterator.remove();
+                bytes -= entry.weight;
+            } else {
+                entry.headId = newHeadId.copy();
+            }
+        }
+    }
+
+    public synchronized void clear() {
+        entries.clear();
+        bytes = 0;
+    }
+
+    private void remove(String localPath) {
+        Entry entry = entries.remove(localPath);
+        if (entry != null)
+            bytes -= entry.weight;
+    }
+
+    private void evict() {
+        Iterator<Entry> iterator = entries.values().iterator();
+        while ((entries.size() > maxEntries || bytes > maxBytes) && iterator.hasNext()) {
+            bytes -= iterator.next().weight;
+            iterator.remove();
+            evictionCount++;
+        }
+    }
+
+    private static List<N2oConfigHistory> copy(List<N2oConfigHistory> histories) {
+        List<N2oConfigHistory> copies = new ArrayList<>(histories.size());
+        for (N2oConfigHistory history : histories)
+            copies.add(history instanceof N2oGitHistory ? ((N2oGitHistory) history).copy() : history);
+        return copies;
+    }
+
+    private static long weigh(String localPath, List<N2oConfigHistory> histories) {
+        long weight = 2L * localPath.length();
+        for (N2oConfigHistory history : histories) {
+            weight += ROW_OVERHEAD;
+            weight += 2L * (length(history.getId()) + length(history.getCode()) + length(history.getLocalPath())
+                    + length(history.getAuthor()) + length(history.getMessage()) + length(history.getDate()));
+            if (!(history instanceof N2oGitHistory))
+                weight += 2L * (length(history.getDiff()) + length(history.getContent()) + length(history.getPreviousContent()));
+        }
+        return weight;
+    }
+
+    private static int length(String value) {
+        return value != null ? value.length() : 0;
+    }
+
+    public synchronized int size() {
+        return entries.size();
+    }
+
+    public synchronized long getBytes() {
+        return bytes;
+    }
+
+    public synchronized long getHitCount() {
+        return hitCount;
+    }
+
+    public synchronized long getMissCount() {
+        return missCount;
+    }
+
+    public synchronized long getEvictionCount() {
+        return evictionCount;
+    }
+
+    private static class Entry {
+        private ObjectId headId;
+        private final List<N2oConfigHistory> histories;
+        private final long weight;
+
+        private Entry(ObjectId headId, List<N2oConfigHistory> histories, long weight) {
+            this.headId = headId;
+            this.histories = histories;
+            this.weight = weight;
+        }
+    }
+}
@@ -0,0 +1,176 @@
+package net.n2oapp.framework.config.audit.git.util;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+
+/**
+ * <p>Потоковый разбор git меток конфликтов по байтам, без декодирования содержимого в строку.</p>
+ * <p>Метками считаются строки, начинающиеся ровно с семи символов {@code <<<<<<<}, {@code =======} или {@code >>>>>>>}
+ * (после {@code =======} сразу следует конец строки). Метки распознаются только в правильном порядке,
+ * прочие строки считаются содержимым файла.</p>
+ * <p>Содержимое вне конфликтов записывается в обе версии, содержимое между {@code <<<<<<<} и {@code =======} -
+ * в нашу версию, между {@code =======} и {@code >>>>>>>} - в их версию. Строки меток не записываются.
+ * Для записи версий передаются потоки, null - версия не нужна.</p>
+ * <p>Содержимое можно передавать частями через {@link #update(byte[], int, int)},
+ * метка может быть разбита между частями.</p>
+ */
+public class N2oGitConflictScanner {
+    private static final int MARKER_LENGTH = 7;
+    private static final int BUFFER_SIZE = 8192;
+    private static final int END = -1;
+    private static final int OUTSIDE = 0;
+    private static final int OURS = 1;
+    private static final int THEIRS = 2;
+    private final OutputStream ours;
+    private final OutputStream theirs;
+    private final byte[] held = new byte[MARKER_LENGTH];
+    private int heldLength;
+    private int region = OUTSIDE;
+    private boolean lineStart = true;
+    private boolean skipLine;
+    private int count;
+
+    /**
+     * @param ours   поток нашей версии файла, может быть null
+     * @param theirs поток их версии файла, может быть null
+     */
+    public N2oGitConflictScanner(OutputStream ours, OutputStream theirs) {
+        this.ours = ours;
+        this.theirs = theirs;
+    }
+
+    /**
+     * Считает количество конфликтов в содержимом
+     *
+     * @param content поток содержимого файла
+     * @return количество конфликтов
+     * @throws IOException ошибка чтения потока
+     */
+    public static int countConflict(InputStream content) throws IOException {
+        return scan(content, null, null);
+    }
+
+    /**
+     * Считает количество конфликтов и записывает версии файла
+     *
+     * @param content поток содержимого файла
+     * @param ours    поток нашей версии файла, может быть null
+     * @param theirs  поток их версии файла, может быть null
+     * @return количество конфликтов
+     * @throws IOException ошибка чтения или записи потока
+     */
+    public static int scan(InputStream content, OutputStream ours, OutputStream theirs) throws IOException {
+        N2oGitConflictScanner scanner = new N2oGitConflictScanner(ours, theirs);
+        byte[] buffer = new byte[BUFFER_SIZE];
+        int length;
+        while ((length = content.read(buffer)) != -1)
+            scanner.update(buffer, 0, length);
+        return scanner.finish();
+    }
+
+    /**
+     * Разбирает очередную часть содержимого
+     *
+     * @param buffer буфер
+     * @param offset начало части в буфере
+     * @param length длина части
+     * @throws IOException ошибка записи версий
+     */
+    public void update(byte[] buffer, int offset, int length) throws IOException {
+        int end = offset + length;
+        int runStart = heldLength > 0 || skipLine ? -1 : offset;
+        for (int i = offset; i < end; i++) {
+            byte b = buffer[i];
+            if (skipLine) {
+                if (b == '\n') {
+                    skipLine = false;
+                    lineStart = true;
+                    runStart = i + 1;
+                }
+                continue;
+            }
+            if (heldLength > 0) {
+                if (heldLength < MARKER_LENGTH && b == held[0]) {
+                    held[heldLength++] = b;
+                    continue;
+                }
+                if (heldLength == MARKER_LENGTH && (b == ' ' || b == '\r' || b == '\n') && enter(held[0], b)) {
+                    heldLength = 0;
+                    if (b == '\n') {
+                        lineStart = true;
+                        runStart = i + 1;
+                    } else {
+                        skipLine = true;
+                    }
+                    continue;
+                }
+                write(held, 0, heldLength);
+                heldLength = 0;
+                runStart = i;
+            }
+            if (lineStart && (b == '<' || b == '=' || b == '>')) {
+                if (runStart >= 0)
+                    write(buffer, runStart, i - runStart);
+                runStart = -1;
+                held[0] = b;
+                heldLength = 1;
+                lineStart = false;
+                continue;
+            }
+            lineStart = b == '\n';
+        }
+        if (runStart >= 0)
+            write(buffer, runStart, end - runStart);
+    }
+
+    /**
+     * Завершает разбор: обрабатывает метку в последней строке без перевода строки
+     *
+     * @return количество конфликтов
+     * @throws IOException ошибка записи версий
+     */
+    public int finish() throws IOException {
+        if (heldLength == MARKER_LENGTH && enter(held[0], END))
+            heldLength = 0;
+        write(held, 0, heldLength);
+        heldLength = 0;
+        return count;
+    }
+
+    public int getCount() {
+        return count;
+    }
+
+    private boolean enter(byte marker, int next) {
+        switch (marker) {
+            case '<':
+                if (region != OUTSIDE)
+                    return false;
+                region = OURS;
+                count++;
+                return true;
+            case '=':
+                if (region != OURS || next == ' ')
+                    return false;
+                region = THEIRS;
+                return true;
+            case '>':
+                if (region != THEIRS)
+                    return false;
+                region = OUTSIDE;
+                return true;
+            default:
+                return false;
+        }
+    }
+
+    private void write(byte[] buffer, int offset, int length) throws IOException {
+        if (length <= 0)
+            return;
+        if (ours != null && region != THEIRS)
+            ours.write(buffer, offset, length);
+        if (theirs != null && region != OURS)
+            theirs.write(buffer, offset, length);
+    }
+}
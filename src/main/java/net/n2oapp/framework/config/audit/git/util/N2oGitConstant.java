@@ -20,6 +20,18 @@ public class N2oGitConstant {
     public static String currentConflictMode;
     public static boolean auditEnabled;
     public static String repositoryPath;
+    public static boolean asyncCommitEnabled;
+    public static int asyncCommitCapacity;
+    public static long asyncCommitWindow;
+    public static boolean systemInCore;
+    public static boolean mergeInCore;
+    public static int systemReadThreads;
+    public static int conflictResolveThreads;
+    public static int historyCacheSize;
+    public static long historyCacheBytes;
+    public static boolean pathIndexEnabled;
+    public static boolean optimisticCommit;
+    public static int optimisticCommitAttempts;
 
     public static void initConstant() {
         Properties properties =(Properties) StaticSpringContext.getBean("n2oProperties");
@@ -30,6 +42,18 @@ public class N2oGitConstant {
         currentMode = properties.getProperty("n2o.config.audit.storage.mode");
         currentConflictMode = properties.getProperty("n2o.config.audit.conflict.mode");
         appVersion = properties.getProperty(properties.getProperty("n2o.config.audit.app.version"));
+        asyncCommitEnabled = Boolean.valueOf(properties.getProperty("n2o.config.audit.async.enabled"));
+        asyncCommitCapacity = Integer.valueOf(properties.getProperty("n2o.config.audit.async.capacity", "1000"));
+        asyncCommitWindow = Long.valueOf(properties.getProperty("n2o.config.audit.async.window", "500"));
+        systemInCore = Boolean.valueOf(properties.getProperty("n2o.config.audit.system.incore"));
+        mergeInCore = Boolean.valueOf(properties.getProperty("n2o.config.audit.merge.incore"));
+        systemReadThreads = Integer.valueOf(properties.getProperty("n2o.config.audit.system.read.threads", "4"));
+        conflictResolveThreads = Integer.valueOf(properties.getProperty("n2o.config.audit.conflict.resolve.threads", "4"));
+        historyCacheSize = Integer.valueOf(properties.getProperty("n2o.config.audit.history.cache.size", "100"));
+        historyCacheBytes = Long.valueOf(properties.getProperty("n2o.config.audit.history.cache.bytes", "16777216"));
+        pathIndexEnabled = Boolean.valueOf(properties.getProperty("n2o.config.audit.path.index.enabled", "true"));
+        optimisticCommit = Boolean.valueOf(properties.getProperty("n2o.config.audit.commit.optimistic"));
+        optimisticCommitAttempts = Integer.valueOf(properties.getProperty("n2o.config.audit.commit.optimistic.attempts", "10"));
     }
 
     public static final class StorageMode {
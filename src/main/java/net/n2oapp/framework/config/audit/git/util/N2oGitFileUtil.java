@@ -5,16 +5,31 @@ import net.n2oapp.framework.config.register.Info;
 import net.n2oapp.framework.config.util.FileSystemUtil;
 import org.apache.commons.io.FileUtils;
 import org.apache.commons.io.IOUtils;
+import org.eclipse.jgit.lib.Constants;
+import org.eclipse.jgit.lib.ObjectId;
+import org.eclipse.jgit.util.TemporaryBuffer;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
-import java.io.File;
-import java.io.IOException;
-import java.io.InputStream;
-import java.nio.file.Files;
-import java.nio.file.Path;
+import java.io.*;
+import java.net.URI;
+import java.net.URISyntaxException;
+import java.net.URLDecoder;
+import java.nio.charset.Charset;
+import java.nio.file.*;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
 import java.util.*;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.regex.Pattern;
 import java.util.stream.Collectors;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipException;
+import java.util.zip.ZipFile;
 
 import static net.n2oapp.framework.config.audit.git.util.N2oGitConstant.DEFAULT_FILE_ENCODING;
 
@@ -25,13 +40,24 @@ import static net.n2oapp.framework.config.audit.git.util.N2oGitConstant.DEFAULT_
 public class N2oGitFileUtil {
     private static Properties properties = (Properties) StaticSpringContext.getBean("n2oProperties");
     private static Logger logger = LoggerFactory.getLogger(N2oGitFileUtil.class);
+    private static final int BUFFER_SIZE = 8192;
+    private static final int BUFFER_LIMIT = 1024 * 1024;
 
     public static File createInfoFile(Info info) {
+        return createFile(resolveSystemInfo(info));
+    }
+
+    /**
+     * Определяет системную(из jar) версию файла конфигурации
+     *
+     * @param info информация о файле конфигурации
+     * @return предок либо сам файл, если он не переопределен на сервере, null - системной версии нет
+     */
+    public static Info resolveSystemInfo(Info info) {
         if (info.getAncestor() != null)
-            return createFile(info.getAncestor());
-        else if (info.getFile() == null) {
-            return createFile(info);
-        }
+            return info.getAncestor();
+        else if (info.getFile() == null)
+            return info;
         return null;
     }
 
@@ -39,14 +65,13 @@ public class N2oGitFileUtil {
         if (info == null || info.getURI() == null)
             return null;
         String uri = info.getURI();
-        File file = new File(getConfigPath() + info.getLocalPath());
+        File file = resolveConfigFile(info);
         return createFile(uri, file);
     }
 
     public static File createFile(String uri, File file) {
         try (InputStream inputStream = FileSystemUtil.getContentAsStream(uri)) {
-            String content = IOUtils.toString(inputStream, DEFAULT_FILE_ENCODING);
-            FileUtils.writeStringToFile(file, content, DEFAULT_FILE_ENCODING);
+            writeFile(inputStream, file);
             return file;
         } catch (IOException e) {
             logger.warn(e.getMessage(), e);
@@ -54,68 +79,391 @@ public class N2oGitFileUtil {
         }
     }
 
-    public static void deleteFile(File file) throws IOException {
-        FileUtils.forceDelete(file);
+    /**
+     * Потоково записывает содержимое в файл по локальному пути конфигурации
+     *
+     * @param info    информация о файле конфигурации
+     * @param content поток с содержимым файла
+     * @return true - файл записан, false - файл уже содержит то же содержимое либо ошибка записи
+     */
+    public static boolean createFile(Info info, InputStream content) {
+        File file = resolveConfigFile(info);
+        try {
+            return writeFile(content, file);
+        } catch (IOException e) {
+            logger.warn(e.getMessage(), e);
+            return false;
+        }
     }
 
-    public static void deleteAllFiles(Set<File> excludingFiles) throws IOException {
-        File configPathDir = new File(properties.getProperty("n2o.config.path"));
-        String ignoresString = properties.getProperty("n2o.config.ignores");
-        List<String> ignores = new ArrayList<>();
-        if (ignoresString.contains(","))
-            ignores.addAll(Arrays.asList(ignoresString.split(",")));
-        else
-            ignores.add(ignoresString);
-        List<Path> stashingFiles = Files.walk(configPathDir.toPath())
-                .filter(path -> !ignores.stream().anyMatch(path.toString()::contains) && !path.equals(configPathDir.toPath()))
-                .collect(Collectors.toList());
-        if (stashingFiles == null || stashingFiles.size() == 0) {
+    /**
+     * <p>Потоково записывает содержимое в файл, не держа его целиком в памяти.</p>
+     * <p>Пока содержимое совпадает с текущим содержимым файла, ничего не пишется.
+     * При первом отличии содержимое записывается во временный файл, который затем переименовывается в целевой.
+     * Временный файл создается в каталоге {@code .git} репозитория, чтобы не попасть в каталог конфигураций,
+     * если репозитория нет - рядом с целевым файлом.</p>
+     *
+     * @param content поток с содержимым
+     * @param file    целевой файл
+     * @return true - файл записан, false - файл уже содержит те же байты
+     * @throws IOException ошибка чтения или записи
+     */
+    public static boolean writeFile(InputStream content, File file) throws IOException {
+        Path target = file.toPath().toAbsolutePath();
+        byte[] buffer = new byte[BUFFER_SIZE];
+        long matched = 0;
+        int pending = 0;
+        if (Files.isRegularFile(target)) {
+            byte[] current = new byte[BUFFER_SIZE];
+            try (InputStream currentStream = Files.newInputStream(target)) {
+                int read;
+                while ((read = IOUtils.read(content, buffer)) > 0) {
+                    if (IOUtils.read(currentStream, current, 0, read) != read || !isEqual(buffer, current, read)) {
+                        pending = read;
+                        break;
+                    }
+                    matched += read;
+                }
+                if (pending == 0 && currentStream.read() == -1)
+                    return false;
+            }
+        }
+        Path parent = target.getParent();
+        Files.createDirectories(parent);
+        Path temp = resolveTempDir(parent).resolve("." + target.getFileName() + "." + System.nanoTime() + ".tmp");
+        try {
+            try (OutputStream out = Files.newOutputStream(temp, StandardOpenOption.CREATE_NEW, StandardOpenOption.WRITE)) {
+                if (matched > 0) {
+                    try (InputStream currentStream = Files.newInputStream(target)) {
+                        IOUtils.copyLarge(currentStream, out, 0, matched);
+                    }
+                }
+                out.write(buffer, 0, pending);
+                IOUtils.copyLarge(content, out, buffer);
+            }
+            try {
+                Files.move(temp, target, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+            } catch (AtomicMoveNotSupportedException e) {
+                Files.move(temp, target, StandardCopyOption.REPLACE_EXISTING);
+            }
+        } finally {
+            Files.deleteIfExists(temp);
+        }
+        return true;
+    }
+
+    private static Path resolveTempDir(Path parent) {
+        Path gitDir = Paths.get(getConfigPath(), Constants.DOT_GIT);
+        return Files.isDirectory(gitDir) ? gitDir : parent;
+    }
+
+    private static boolean isEqual(byte[] first, byte[] second, int length) {
+        for (int i = 0; i < length; i++) {
+            if (first[i] != second[i])
+                return false;
+        }
+        return true;
+    }
+
+    /**
+     * <p>Читает содержимое файлов конфигураций, открывая каждый jar один раз.</p>
+     * <p>Файлы группируются по jar, jar читаются параллельно, но не более чем в {@code threads} потоков.
+     * Файлы вне jar читаются по отдельности. Обработчик содержимого вызывается последовательно.</p>
+     * <p>Содержимое не читается в память целиком: обработчик получает поток, открытый на время его вызова.
+     * При параллельном чтении содержимое предварительно копируется во временный буфер, который при превышении
+     * {@link #BUFFER_LIMIT} сбрасывается во временный файл, чтобы распаковка jar не выполнялась под блокировкой.</p>
+     * <p>Если несколько файлов имеют один локальный путь, читается только последний из них в порядке списка,
+     * как при последовательной записи, независимо от порядка чтения jar.</p>
+     *
+     * @param infos    информация о файлах конфигураций
+     * @param threads  максимальное количество потоков чтения
+     * @param consumer обработчик содержимого
+     * @throws IOException ошибка обработчика содержимого
+     */
+    public static void readContents(Collection<Info> infos, int threads, ContentConsumer consumer) throws IOException {
+        Map<String, Info> infosByPath = new LinkedHashMap<>();
+        for (Info info : infos) {
+            if (info != null && info.getURI() != null)
+                infosByPath.put(info.getLocalPath(), info);
+        }
+        Map<String, List<Info>> infosByJar = new LinkedHashMap<>();
+        List<Info> otherInfos = new ArrayList<>();
+        for (Info info : infosByPath.values()) {
+            String uri = info.getURI();
+            if (uri.startsWith("jar:file:") && uri.indexOf("!/") == uri.lastIndexOf("!/") && uri.contains("!/"))
+                infosByJar.computeIfAbsent(resolveSource(uri), jar -> new ArrayList<>()).add(info);
+            else
+                otherInfos.add(info);
+        }
+        if (threads <= 1 || infosByJar.size() <= 1) {
+            for (Map.Entry<String, List<Info>> entry : infosByJar.entrySet())
+                readJarContents(entry.getKey(), entry.getValue(), consumer);
+            readContentsSeparately(otherInfos, consumer);
             return;
         }
-        for (Path path : new ArrayList<>(stashingFiles)) {
-            if (excludingFiles.stream().anyMatch(file -> file.toPath().toString().equals(path.toString())))
+        //чтение и распаковка содержимого выполняются параллельно, под блокировкой вызывается только обработчик
+        ContentConsumer serialConsumer = (info, content, length) -> {
+            TemporaryBuffer buffer = new TemporaryBuffer.LocalFile(null, BUFFER_LIMIT);
+            try {
+                try {
+                    IOUtils.copyLarge(content, buffer);
+                } finally {
+                    buffer.close();
+                }
+                try (InputStream bufferedContent = buffer.openInputStream()) {
+                    synchronized (consumer) {
+                        consumer.accept(info, bufferedContent, buffer.length());
+                    }
+                }
+            } finally {
+                buffer.destroy();
+            }
+        };
+        ExecutorService executor = Executors.newFixedThreadPool(Math.min(threads, infosByJar.size()));
+        try {
+            List<Future<?>> futures = new ArrayList<>();
+            for (Map.Entry<String, List<Info>> entry : infosByJar.entrySet()) {
+                futures.add(executor.submit(() -> {
+                    readJarContents(entry.getKey(), entry.getValue(), serialConsumer);
+                    return null;
+                }));
+            }
+            readContentsSeparately(otherInfos, serialConsumer);
+            for (Future<?> future : futures)
+                future.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException(e);
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof IOException)
+                throw (IOException) e.getCause();
+            throw new IOException(e.getCause());
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    private static void readJarContents(String jarUri, List<Info> infos, ContentConsumer consumer) throws IOException {
+        File jar;
+        try {
+            jar = new File(new URI(jarUri));
+        } catch (URISyntaxException | IllegalArgumentException e) {
+            logger.debug(e.getMessage(), e);
+            readContentsSeparately(infos, consumer);
+            return;
+        }
+        try (ZipFile zipFile = new ZipFile(jar)) {
+            for (Info info : infos) {
+                String uri = info.getURI();
+                String entryName = uri.substring(uri.indexOf("!/") + 2);
+                ZipEntry entry = zipFile.getEntry(entryName);
+                if (entry == null)
+                    entry = zipFile.getEntry(URLDecoder.decode(entryName.replace("+", "%2B"), DEFAULT_FILE_ENCODING));
+                if (entry == null) {
+                    logger.warn("Config {} not found in {}", entryName, jar);
+                    continue;
+                }
+                try (InputStream inputStream = zipFile.getInputStream(entry)) {
+                    consumer.accept(info, inputStream, entry.getSize());
+                }
+            }
+        } catch (ZipException e) {
+            logger.warn(e.getMessage(), e);
+            readContentsSeparately(infos, consumer);
+        }
+    }
+
+    private static void readContentsSeparately(List<Info> infos, ContentConsumer consumer) throws IOException {
+        for (Info info : infos) {
+            InputStream inputStream;
+            try {
+                inputStream = FileSystemUtil.getContentAsStream(info.getURI());
+            } catch (IOException e) {
+                logger.warn(e.getMessage(), e);
                 continue;
-            File file = path.toFile();
-            if (file.exists() && (file.isFile() || isEmptyDir(file))) {
-                FileUtils.forceDelete(file);
-                stashingFiles.remove(path);
+            }
+            try (InputStream content = inputStream) {
+                consumer.accept(info, content, -1);
             }
         }
-        deleteEmptyDirs(stashingFiles);
     }
 
-    private static boolean isEmptyDir(File file) {
-        return file.isDirectory() && (file.listFiles() == null || file.listFiles().length == 0);
+    /**
+     * Обработчик содержимого файла конфигурации
+     */
+    public interface ContentConsumer {
+        /**
+         * @param info    информация о файле конфигурации
+         * @param content поток с содержимым, закрывается после вызова
+         * @param length  размер содержимого, -1 - размер неизвестен
+         * @throws IOException ошибка чтения или обработки содержимого
+         */
+        void accept(Info info, InputStream content, long length) throws IOException;
     }
 
-    private static void deleteEmptyDirs(List<Path> dirs) {
-        for (Path path : dirs) {
-            File file = path.toFile();
-            if (file.isFile() || !file.exists())
+    /**
+     * <p>Вычисляет отпечаток набора системных файлов конфигураций.</p>
+     * <p>Учитываются локальные пути, URI и дата изменения и размер jar(файла), из которого читается конфигурация.
+     * Содержимое файлов не читается.</p>
+     * <p>Если дату изменения и размер источника определить нельзя(источник не является файлом),
+     * отпечаток не вычисляется.</p>
+     *
+     * @param infos информация о файлах конфигураций
+     * @return отпечаток в шестнадцатеричном виде, null - отпечаток вычислить нельзя
+     */
+    public static String calculateFingerprint(Collection<Info> infos) {
+        Map<String, String> sourceStamps = new HashMap<>();
+        List<String> entries = new ArrayList<>();
+        for (Info info : infos) {
+            Info systemInfo = resolveSystemInfo(info);
+            if (systemInfo == null || systemInfo.getURI() == null)
                 continue;
-            List<File> emptyDirs = new ArrayList<>();
-            do {
-                emptyDirs.forEach(File::delete);
-                emptyDirs = findEmptyDirs(file, new ArrayList<>());
-            } while (emptyDirs.size() != 0);
-        }
-    }
-
-    private static ArrayList<File> findEmptyDirs(File rootDir, ArrayList<File> emptyDirs) {
-        File[] childs = rootDir.listFiles();
-        if (childs == null || childs.length == 0) {
-            if (rootDir.isDirectory())
-                emptyDirs.add(rootDir);
-            return emptyDirs;
-        }
-        for (File child : childs) {
-            if (child.isDirectory() && (child.listFiles() == null || child.listFiles().length == 0)) {
-                emptyDirs.add(child);
-            } else {
-                findEmptyDirs(child, emptyDirs);
+            String uri = systemInfo.getURI();
+            String sourceStamp = sourceStamps.computeIfAbsent(resolveSource(uri), N2oGitFileUtil::stamp);
+            if (sourceStamp == null)
+                return null;
+            entries.add(systemInfo.getLocalPath() + "|" + uri + "|" + sourceStamp);
+        }
+        Collections.sort(entries);
+        try {
+            MessageDigest digest = MessageDigest.getInstance("SHA-1");
+            Charset charset = Charset.forName(DEFAULT_FILE_ENCODING);
+            for (String entry : entries) {
+                digest.update(entry.getBytes(charset));
+                digest.update((byte) '\n');
             }
+            return ObjectId.fromRaw(digest.digest()).name();
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
         }
-        return emptyDirs;
+    }
+
+    private static String resolveSource(String uri) {
+        if (uri.startsWith("jar:")) {
+            int separator = uri.indexOf("!/");
+            return separator > 0 ? uri.substring(4, separator) : uri.substring(4);
+        }
+        return uri;
+    }
+
+    private static String stamp(String sourceUri) {
+        if (!sourceUri.startsWith("file:"))
+            return null;
+        try {
+            File source = new File(new URI(sourceUri));
+            long lastModified = source.lastModified();
+            return lastModified > 0 ? lastModified + ":" + source.length() : null;
+        } catch (URISyntaxException | IllegalArgumentException e) {
+            logger.debug(e.getMessage(), e);
+            return null;
+        }
+    }
+
+    public static void deleteFile(File file) throws IOException {
+        FileUtils.forceDelete(file);
+    }
+
+    public static Set<File> deleteAllFiles(Set<File> excludingFiles) throws IOException {
+        File configPathDir = new File(properties.getProperty("n2o.config.path"));
+        return deleteAllFiles(configPathDir, excludingFiles, properties.getProperty("n2o.config.ignores"),
+                Boolean.valueOf(properties.getProperty("n2o.config.audit.clean.parallel")));
+    }
+
+    /**
+     * <p>Удаляет все файлы каталога, кроме исключенных и игнорируемых, и все пустые подкаталоги.</p>
+     * <p>Каталог обходится один раз в обратном порядке(сначала содержимое, потом каталог),
+     * поэтому время работы линейно зависит от количества файлов.</p>
+     *
+     * @param rootDir        корневой каталог, сам каталог не удаляется
+     * @param excludingFiles файлы, которые необходимо оставить
+     * @param ignoresString  игнорируемые части путей через запятую
+     * @param parallel       true - удалять файлы параллельно
+     * @return удаленные файлы(абсолютные нормализованные пути)
+     * @throws IOException ошибка обхода или удаления
+     */
+    public static Set<File> deleteAllFiles(File rootDir, Set<File> excludingFiles, String ignoresString, boolean parallel) throws IOException {
+        Path root = rootDir.toPath().toAbsolutePath().normalize();
+        if (!Files.isDirectory(root))
+            return Collections.emptySet();
+        Set<Path> excluding = new HashSet<>(excludingFiles.size() * 2);
+        excludingFiles.forEach(file -> excluding.add(normalize(file).toPath()));
+        Pattern ignores = compileIgnores(ignoresString);
+        List<Path> files = new ArrayList<>();
+        List<Path> dirs = new ArrayList<>();
+        Files.walkFileTree(root, new SimpleFileVisitor<Path>() {
+            @Override
+            public FileVisitResult preVisitDirectory(Path dir, BasicFileAttributes attrs) {
+                if (!dir.equals(root) && isIgnored(ignores, dir))
+                    return FileVisitResult.SKIP_SUBTREE;
+                return FileVisitResult.CONTINUE;
+            }
+
+            @Override
+            public FileVisitResult visitFile(Path file, BasicFileAttributes attrs) {
+                if (!isIgnored(ignores, file) && !excluding.contains(file))
+                    files.add(file);
+                return FileVisitResult.CONTINUE;
+            }
+
+            @Override
+            public FileVisitResult postVisitDirectory(Path dir, IOException exc) {
+                if (!dir.equals(root))
+                    dirs.add(dir);
+                return FileVisitResult.CONTINUE;
+            }
+        });
+        Set<File> deletedFiles = (parallel ? files.parallelStream() : files.stream())
+                .filter(N2oGitFileUtil::deleteQuietly)
+                .map(Path::toFile)
+                .collect(Collectors.toSet());
+        for (Path dir : dirs) {
+            try {
+                Files.deleteIfExists(dir);
+            } catch (DirectoryNotEmptyException e) {
+                logger.trace(e.getMessage(), e);
+            }
+        }
+        return deletedFiles;
+    }
+
+    /**
+     * Приводит файл к абсолютному нормализованному пути для сравнения
+     *
+     * @param file файл
+     * @return файл с абсолютным нормализованным путем
+     */
+    public static File normalize(File file) {
+        return file.toPath().toAbsolutePath().normalize().toFile();
+    }
+
+    private static Pattern compileIgnores(String ignoresString) {
+        StringJoiner regex = new StringJoiner("|");
+        for (String ignore : ignoresString.split(",")) {
+            if (!ignore.isEmpty())
+                regex.add(Pattern.quote(ignore));
+        }
+        return regex.length() == 0 ? null : Pattern.compile(regex.toString());
+    }
+
+    private static boolean isIgnored(Pattern ignores, Path path) {
+        return ignores != null && ignores.matcher(path.toString()).find();
+    }
+
+    private static boolean deleteQuietly(Path file) {
+        try {
+            return Files.deleteIfExists(file);
+        } catch (IOException e) {
+            logger.warn(e.getMessage(), e);
+            return false;
+        }
+    }
+
+    /**
+     * @param info информация о файле конфигурации
+     * @return файл в каталоге конфигураций по локальному пути конфигурации
+     */
+    public static File resolveConfigFile(Info info) {
+        return new File(getConfigPath() + info.getLocalPath());
     }
 
     private static String getConfigPath() {
@@ -1,27 +1,18 @@
 package net.n2oapp.framework.config.audit.git.util;
 
 import net.n2oapp.framework.config.audit.git.core.N2oGitCore;
+import net.n2oapp.framework.config.audit.git.core.N2oGitReadSession;
+import net.n2oapp.framework.config.audit.git.model.N2oGitPathState;
 import net.n2oapp.framework.config.register.InfoStatus;
-import net.n2oapp.framework.config.register.audit.util.N2oConfigConflictParser;
-import org.eclipse.jgit.api.Status;
 import org.eclipse.jgit.api.errors.GitAPIException;
 import org.eclipse.jgit.lib.ObjectId;
-import org.eclipse.jgit.lib.ObjectLoader;
-import org.eclipse.jgit.lib.Repository;
 import org.eclipse.jgit.revwalk.RevCommit;
-import org.eclipse.jgit.revwalk.RevTree;
-import org.eclipse.jgit.revwalk.RevWalk;
-import org.eclipse.jgit.treewalk.TreeWalk;
-import org.eclipse.jgit.treewalk.filter.PathFilter;
-import org.eclipse.jgit.treewalk.filter.TreeFilter;
 
-import java.io.ByteArrayOutputStream;
 import java.io.IOException;
-import java.util.ArrayList;
+import java.io.InputStream;
 import java.util.Iterator;
 import java.util.List;
 
-import static net.n2oapp.framework.config.audit.git.util.N2oGitConstant.DEFAULT_FILE_ENCODING;
 import static net.n2oapp.framework.config.register.audit.model.N2oConfigMessage.*;
 
 /**
@@ -30,24 +21,24 @@ import static net.n2oapp.framework.config.register.audit.model.N2oConfigMessage.
  */
 public class N2oGitUtil {
     private static N2oGitCore gitCore = N2oGitCore.getInstance();
-    private static final String COMMIT = "commit ";
-    private static final String AUTHOR = "Author: ";
-    private static final String DATE = "Date: ";
-    private static final String MESSAGE = "Message: ";
-    private static final String MERGE = "Merge: ";
 
 
-    public static String buildMessage(String message) throws GitAPIException {
-        if (hasPrefix(message))
+    /**
+     * Добавляет к сообщению без префикса префикс изменения файла.
+     * Сообщение без префикса считается локальным путем файла, префикс определяется по состоянию файла в индексе.
+     * Если сообщение не является путем измененного файла, оно возвращается без изменений.
+     *
+     * @param message сообщение коммита
+     * @return сообщение коммита с префиксом
+     */
+    public static String buildMessage(String message) {
+        if (message == null || message.isEmpty() || hasPrefix(message))
             return message;
-        Status status = gitCore.getGit().status().call();
-        if (status.getAdded().size() == 1)
-            return CREATED_PREFIX + message;
-        else if (status.getChanged().size() == 1)
-            return UPDATED_PREFIX + message;
-        else if (status.getRemoved().size() == 1)
-            return DELETED_PREFIX + message;
-        return message;
+        try {
+            return gitCore.retrieveState(message).getMessagePrefix() + message;
+        } catch (IllegalArgumentException e) {
+            return message;
+        }
     }
 
     public static String conflictMessage(InfoStatus.Status status) {
@@ -62,125 +53,83 @@ public class N2oGitUtil {
     public static String buildMessageForRemove(String localPath, InfoStatus.Status status) {
         if (InfoStatus.Status.SERVER.equals(status))
             return DELETED_PREFIX.value;
-        else {
-            int countConflict = countLastCommitConflict(localPath);
-            if (wasConflict(status, countConflict)) {
-                return conflictMessage(status);
-            } else
-                return RESTORED_PREFIX.value;
-        }
+        return buildMessageForRemove(status, countLastCommitConflict(localPath));
     }
 
+    public static String buildMessageForRemove(N2oGitPathState state, InfoStatus.Status status) {
+        if (InfoStatus.Status.SERVER.equals(status))
+            return DELETED_PREFIX.value;
+        return buildMessageForRemove(status, countConflict(state.getHeadId()));
+    }
 
-    public static int countLastCommitConflict(String localPath) {
-        int countConflict = 0;
-        try {
-            Iterator<RevCommit> revCommits = gitCore.getGit().log().addPath(localPath).call().iterator();
-            if (revCommits.hasNext()) {
-                String content = retrieveContent(revCommits.next(), localPath);
-                countConflict = N2oConfigConflictParser.countConflict(content);
-            }
-        } catch (GitAPIException | IOException e) {
-            throw new RuntimeException("Config audit calculate last conflict error.", e);
-        }
-        return countConflict;
+    private static String buildMessageForRemove(InfoStatus.Status status, int countConflict) {
+        if (wasConflict(status, countConflict))
+            return conflictMessage(status);
+        else
+            return RESTORED_PREFIX.value;
     }
 
-    public static String retrieveContent(RevCommit commitObject, String localPath) throws IOException {
-        RevCommit commit = new RevWalk(gitCore.getRepository()).parseCommit(commitObject);
-        RevTree tree = commit.getTree();
-        Repository repo = gitCore.getRepository();
-        TreeWalk treeWalk = new TreeWalk(repo);
-        treeWalk.addTree(tree);
-        treeWalk.setRecursive(true);
-        treeWalk.setFilter(TreeFilter.ANY_DIFF);
-        treeWalk.setFilter(PathFilter.create(localPath));
-        if (!treeWalk.next()) {
-            return "";
-        }
-        ObjectId objectId = treeWalk.getObjectId(0);
-        ObjectLoader loader = repo.open(objectId);
-        ByteArrayOutputStream out = new ByteArrayOutputStream();
-        loader.copyTo(out);
-        return new String(out.toByteArray(), DEFAULT_FILE_ENCODING);
+    /**
+     * Строит сообщение коммита одного файла по его состоянию в индексе
+     *
+     * @param state  состояние файла в индексе относительно HEAD
+     * @param status статус файла конфигурации
+     * @return сообщение коммита
+     */
+    public static String buildMessage(N2oGitPathState state, InfoStatus.Status status) {
+        String prefix = wasConflict(status, countConflict(state.getHeadId())) ? conflictMessage(status) : state.getMessagePrefix();
+        return prefix + state.getLocalPath();
     }
 
-    public static String resolveMergeMessage(String systemBranch, String serverBranch) {
-        return MERGE_PREFIX + String.format(MERGE_BRANCH_INFO.value, systemBranch, serverBranch);
+    /**
+     * Считает количество конфликтов в содержимом файла.
+     * Содержимое файла в HEAD совпадает с содержимым в последнем коммите, изменявшем этот файл.
+     * Содержимое разбирается потоком, без декодирования в строку.
+     *
+     * @param blobId идентификатор содержимого файла
+     * @return количество конфликтов
+     */
+    public static int countConflict(ObjectId blobId) {
+        if (blobId == null)
+            return 0;
+        try (N2oGitReadSession session = gitCore.openSession()) {
+            return countConflict(session, blobId);
+        } catch (IOException e) {
+            throw new RuntimeException("Config audit calculate last conflict error.", e);
+        }
     }
 
-    public static List<String> drawGraph() {
-        List<String> graph = new ArrayList<>();
-        try {
-            Iterator<RevCommit> commits = gitCore.getGit().log().all().call().iterator();
-            RevCommit developCommit = commits.next();
-            boolean isForked = false;
-            while (developCommit != null) {
-                if (developCommit.getParentCount() > 1) {
-                    developCommit = createFork(graph, developCommit, isForked);
-                    isForked = developCommit != null;
-                    while (developCommit != null && developCommit.getParentCount() == 1) {
-                        graph.add("* | " + COMMIT + developCommit.getName());
-                        graph.add("| | " + AUTHOR + developCommit.getAuthorIdent().getName());
-                        addSimpleForkedBlock(graph, developCommit);
-                        developCommit = getParentRevCommit(developCommit, 0);
-                    }
-                } else if (!isForked) {
-                    graph.add("*   " + COMMIT + developCommit.getName());
-                    graph.add("|   " + AUTHOR + developCommit.getAuthorIdent().getName());
-                    graph.add("|   " + DATE + developCommit.getAuthorIdent().getWhen());
-                    graph.add("|   " + MESSAGE + developCommit.getFullMessage());
-                    graph.add("|");
-                    developCommit = getParentRevCommit(developCommit, 0);
-                }
-                if (developCommit != null && developCommit.getParentCount() == 0) {
-                    graph.add("*   " + COMMIT + developCommit.getName());
-                    graph.add("    " + AUTHOR + developCommit.getAuthorIdent().getName());
-                    graph.add("    " + DATE + developCommit.getAuthorIdent().getWhen());
-                    graph.add("    " + MESSAGE + developCommit.getFullMessage());
-                    developCommit = getParentRevCommit(developCommit, 0);
-                }
-            }
-        } catch (IOException | GitAPIException e) {
-            throw new RuntimeException("Config audit draw graph error.", e);
+    private static int countConflict(N2oGitReadSession session, ObjectId blobId) throws IOException {
+        if (blobId == null)
+            return 0;
+        try (InputStream content = session.openStream(blobId)) {
+            return N2oGitConflictScanner.countConflict(content);
         }
-        return graph;
     }
 
-    private static RevCommit createFork(List<String> graph, RevCommit developCommit, boolean isForked) throws IOException {
-        graph.add((isForked ? "* |  " : "*   ") + COMMIT + developCommit.getName());
-        graph.add((isForked ? "|\\ \\ " : "|\\  ") + MERGE + getParentRevCommit(developCommit, 0).getName().substring(0, 6) + " " + getParentRevCommit(developCommit, 1).getName().substring(0, 6));
-        graph.add((isForked ? "| |/" : "| |") + " " + AUTHOR + developCommit.getAuthorIdent().getName());
-        addSimpleForkedBlock(graph, developCommit);
-        RevCommit masterCommit = getParentRevCommit(developCommit, 1);
-        RevCommit parentMasterCommit = getParentRevCommit(developCommit, 0);
-        if (parentMasterCommit.getParentCount() > 0) {
-            graph.add("| * " + COMMIT + masterCommit.getName());
-            graph.add("| | " + AUTHOR + masterCommit.getAuthorIdent().getName());
-            addSimpleForkedBlock(graph, masterCommit);
-        } else {
-            graph.add("| * " + COMMIT + masterCommit.getName());
-            graph.add("|/  " + AUTHOR + masterCommit.getAuthorIdent().getName());
-            graph.add("|   " + DATE + masterCommit.getAuthorIdent().getWhen());
-            graph.add("|   " + MESSAGE + masterCommit.getFullMessage());
-            graph.add("|");
+
+    public static int countLastCommitConflict(String localPath) {
+        try (N2oGitReadSession session = gitCore.openSession()) {
+            ObjectId snapshotId = gitCore.retrieveSnapshot();
+            if (snapshotId == null)
+                return 0;
+            List<ObjectId> commitIds = gitCore.retrievePathCommits(localPath, snapshotId);
+            if (commitIds != null)
+                return commitIds.isEmpty() ? 0 : countConflict(session, session.findBlob(commitIds.get(0), localPath));
+            Iterator<RevCommit> revCommits = gitCore.getGit().log().add(snapshotId).addPath(localPath).call().iterator();
+            return revCommits.hasNext() ? countConflict(session, session.findBlob(revCommits.next(), localPath)) : 0;
+        } catch (GitAPIException | IOException e) {
+            throw new RuntimeException("Config audit calculate last conflict error.", e);
         }
-        developCommit = getParentRevCommit(developCommit, 0);
-        return developCommit;
     }
 
-    private static void addSimpleForkedBlock(List<String> graph, RevCommit masterCommit) {
-        graph.add("| | " + DATE + masterCommit.getAuthorIdent().getWhen());
-        graph.add("| | " + MESSAGE + masterCommit.getFullMessage());
-        graph.add("| |");
+    public static String retrieveContent(RevCommit commit, String localPath) throws IOException {
+        try (N2oGitReadSession session = gitCore.openSession()) {
+            return session.readContent(commit, localPath);
+        }
     }
 
-    private static RevCommit getParentRevCommit(RevCommit commit, int parentId) throws IOException {
-        if (commit.getParents() == null || commit.getParentCount() == 0)
-            return null;
-        ObjectId commitId = gitCore.getRepository().resolve(commit.getParent(parentId).getName());
-        RevWalk revWalk = new RevWalk(gitCore.getRepository());
-        commit = revWalk.parseCommit(commitId);
-        return commit;
+    public static String resolveMergeMessage(String systemBranch, String serverBranch) {
+        return MERGE_PREFIX + String.format(MERGE_BRANCH_INFO.value, systemBranch, serverBranch);
     }
 }
@@ -1,11 +1,21 @@
 package net.n2oapp.framework.config.audit.git.core;
 
+import net.n2oapp.framework.api.exception.N2oException;
+import net.n2oapp.framework.config.audit.git.model.N2oGitGraphCommit;
+import net.n2oapp.framework.config.audit.git.model.N2oGitPathState;
 import net.n2oapp.framework.config.audit.git.util.N2oGitConstant;
 import net.n2oapp.framework.config.audit.git.util.model.N2oGitTestEnv;
+import net.n2oapp.framework.config.register.InfoStatus;
 import net.n2oapp.framework.config.util.FileSystemUtil;
 import org.apache.commons.io.IOUtils;
 import org.eclipse.jgit.api.Status;
 import org.eclipse.jgit.api.errors.GitAPIException;
+import org.eclipse.jgit.lib.CommitBuilder;
+import org.eclipse.jgit.lib.Constants;
+import org.eclipse.jgit.lib.ObjectId;
+import org.eclipse.jgit.lib.ObjectInserter;
+import org.eclipse.jgit.lib.PersonIdent;
+import org.eclipse.jgit.lib.Repository;
 import org.eclipse.jgit.revwalk.RevCommit;
 import org.junit.After;
 import org.junit.Before;
@@ -14,15 +24,25 @@ import org.junit.runner.RunWith;
 import org.springframework.test.context.ContextConfiguration;
 import org.springframework.test.context.junit4.SpringJUnit4ClassRunner;
 
+import java.io.ByteArrayInputStream;
 import java.io.File;
+import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
 import java.net.URISyntaxException;
 import java.net.URL;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Iterator;
+import java.util.List;
 
+import static net.n2oapp.framework.config.audit.git.util.N2oGitConstant.DEFAULT_FILE_ENCODING;
 import static net.n2oapp.framework.config.audit.git.util.N2oGitTestUtil.*;
-import static net.n2oapp.framework.config.register.audit.model.N2oConfigMessage.CREATED_PREFIX;
+import static net.n2oapp.framework.config.audit.git.util.N2oGitUtil.buildMessage;
+import static net.n2oapp.framework.config.register.audit.model.N2oConfigMessage.*;
 
 /**
  * @author dfirstov
@@ -45,17 +65,129 @@ public class N2oGitCoreTest {
         testGetInstance();
         testAdd();
         testCommit("test/mock.object.xml");
+        testPathIndex("test/mock.object.xml");
         testAddUpdated();
+        testCommitOptimistic();
         testCheckout();
     }
 
+    @Test
+    public void testMessage() throws IOException, GitAPIException {
+        N2oGitCore gitCore = env.getGitCore();
+        String localPath = "test/state.object.xml";
+        File file = generateStorageFile(localPath);
+        assert gitCore.retrieveState(localPath).isClean();
+        //создание
+        FileSystemUtil.saveContentToFile("<object/>", file);
+        gitCore.add(localPath);
+        N2oGitPathState state = gitCore.retrieveState(localPath);
+        assert state.isAdded() && state.getHeadId() == null && state.getIndexId() != null;
+        assert (CREATED_PREFIX.value + localPath).equals(buildMessage(state, InfoStatus.Status.MODIFY));
+        assert (CREATED_PREFIX.value + localPath).equals(buildMessage(localPath));
+        //сообщение, не являющееся путем измененного файла, не изменяется
+        assert "".equals(buildMessage(""));
+        assert "/".equals(buildMessage("/"));
+        assert "Merge branch system".equals(buildMessage("Merge branch system"));
+        gitCore.commit(localPath, "test_author");
+        assert gitCore.retrieveState(localPath).isClean();
+        //изменение, после которого в файле остается конфликт
+        FileSystemUtil.saveContentToFile("<<<<<<< ours\n<object/>\n=======\n<object></object>\n>>>>>>> theirs\n", file);
+        gitCore.add(localPath);
+        state = gitCore.retrieveState(localPath);
+        assert state.isChanged();
+        assert (UPDATED_PREFIX.value + localPath).equals(buildMessage(state, InfoStatus.Status.CONFLICT));
+        gitCore.commit(localPath, "test_author");
+        //разрешение конфликта
+        FileSystemUtil.saveContentToFile("<object/>", file);
+        gitCore.add(localPath);
+        state = gitCore.retrieveState(localPath);
+        assert state.isChanged();
+        assert (RESOLVED_PREFIX.value + localPath).equals(buildMessage(state, InfoStatus.Status.MODIFY));
+        assert (RESOLVED_TO_SYSTEM_PREFIX.value + localPath).equals(buildMessage(state, InfoStatus.Status.SYSTEM));
+        gitCore.commit(localPath, "test_author");
+        //удаление
+        gitCore.getGit().rm().addFilepattern(localPath).call();
+        state = gitCore.retrieveState(localPath);
+        assert state.isRemoved() && state.getIndexId() == null;
+        assert (DELETED_PREFIX.value + localPath).equals(buildMessage(state, InfoStatus.Status.SERVER));
+        gitCore.commit(localPath, "test_author");
+        RevCommit commit = gitCore.getGit().log().setMaxCount(1).call().iterator().next();
+        assert commit.getShortMessage().equals(DELETED_PREFIX.value + localPath);
+    }
+
+    @Test
+    public void testCommitTree() throws IOException, GitAPIException {
+        N2oGitCore gitCore = env.getGitCore();
+        String localPath = "test/tree.object.xml";
+        File file = generateStorageFile(localPath);
+        FileSystemUtil.saveContentToFile("<object/>", file);
+        gitCore.add(localPath);
+        gitCore.commit(localPath, "test_author");
+        ObjectId headId = gitCore.getRepository().resolve(Constants.HEAD);
+        ObjectId treeId;
+        try (N2oGitTreeEditor editor = gitCore.editBranch(env.getServerBranchName())) {
+            editor.put(localPath, "<object></object>".getBytes());
+            treeId = editor.writeTree();
+        }
+        //локальное изменение файла не перезаписывается, HEAD не переводится
+        FileSystemUtil.saveContentToFile("<object>local</object>", file);
+        try {
+            gitCore.commitTree(treeId, UPDATED_PREFIX.value + localPath, "test_author", headId);
+            assert false;
+        } catch (N2oException e) {
+            assert headId.equals(gitCore.getRepository().resolve(Constants.HEAD));
+            assert "<object>local</object>".equals(new String(Files.readAllBytes(file.toPath())));
+        }
+        FileSystemUtil.saveContentToFile("<object/>", file);
+        ObjectId commitId = gitCore.commitTree(treeId, UPDATED_PREFIX.value + localPath, "test_author", headId);
+        assert commitId.equals(gitCore.getRepository().resolve(Constants.HEAD));
+        assert "<object></object>".equals(new String(Files.readAllBytes(file.toPath())));
+        assert gitCore.isClean();
+    }
+
+    @Test
+    public void testTreeEditorUpdate() throws IOException {
+        N2oGitCore gitCore = env.getGitCore();
+        String localPath = "test/update.object.xml";
+        try (N2oGitTreeEditor editor = gitCore.editBranch("system")) {
+            editor.put(localPath, "<object>\n</object>\n".getBytes(DEFAULT_FILE_ENCODING));
+            assert editor.commit(UPDATED_PREFIX.value + localPath, "test_author") != null;
+        }
+        try (N2oGitTreeEditor editor = gitCore.editBranch("system")) {
+            //концы строк приводятся(core.autocrlf=true), содержимое с CRLF совпадает с базовым деревом
+            assert !editor.update(localPath, stream("<object>\r\n</object>\r\n"));
+            ObjectId newId = editor.idFor(stream("<object>new</object>\r\n"));
+            assert newId.equals(editor.idFor(stream("<object>new</object>\n")));
+            assert !gitCore.getRepository().getObjectDatabase().has(newId);
+            assert editor.update(localPath, stream("<object>new</object>\r\n"));
+            assert gitCore.getRepository().getObjectDatabase().has(newId);
+            assert editor.commit(UPDATED_PREFIX.value + localPath, "test_author") != null;
+        }
+        try (N2oGitTreeEditor editor = gitCore.editBranch("system")) {
+            assert editor.idFor(stream("<object>new</object>\n")).equals(editor.getBaseId(localPath));
+        }
+    }
+
+    private InputStream stream(String content) throws IOException {
+        return new ByteArrayInputStream(content.getBytes(DEFAULT_FILE_ENCODING));
+    }
+
     private void testGetInstance() throws IOException, GitAPIException, URISyntaxException {
         assert N2oGitCore.isInit();
         N2oGitCore gitCore = env.getGitCore();
         assert gitCore.isCurrentBranch(env.getServerBranchName());
         assert gitCore.isClean();
         Iterable<RevCommit> gitIgnoreRev = gitCore.getGit().log().addPath(".gitignore").call();
-        assert gitIgnoreRev.iterator().hasNext();
+        Iterator<RevCommit> gitIgnoreIterator = gitIgnoreRev.iterator();
+        assert gitIgnoreIterator.hasNext();
+        RevCommit initCommit = gitIgnoreIterator.next();
+        int openSessionCount = gitCore.getOpenSessionCount();
+        assert initCommit.equals(gitCore.retrieveInitCommit());
+        assert initCommit.equals(gitCore.retrieveInitCommit());
+        assert gitCore.getOpenSessionCount() == openSessionCount;
+        //перестроение индекса сбрасывает кэш, коммит находится заново
+        gitCore.rebuildPathIndex();
+        assert initCommit.equals(gitCore.retrieveInitCommit());
         Iterable<RevCommit> gitConfigRev = gitCore.getGit().log().addPath("/.git/config").call();
         assert !gitConfigRev.iterator().hasNext();
         URL resource = this.getClass().getClassLoader().getResource(RESOURCE_PATH + "template/gitconfig-template");
@@ -89,6 +221,156 @@ public class N2oGitCoreTest {
         assert !commitIterator.hasNext();
     }
 
+    private void testPathIndex(String mockLocalPath) throws GitAPIException, IOException {
+        N2oGitCore gitCore = env.getGitCore();
+        List<ObjectId> logIds = new ArrayList<>();
+        gitCore.getGit().log().addPath(mockLocalPath).call().forEach(logIds::add);
+        assert logIds.equals(gitCore.retrievePathCommits(mockLocalPath));
+        //индекс, построенный заново, совпадает с дописанным
+        gitCore.rebuildPathIndex();
+        assert logIds.equals(gitCore.retrievePathCommits(mockLocalPath));
+        assert gitCore.retrievePathCommits("test/absent.object.xml").isEmpty();
+    }
+
+    @Test
+    public void testPathIndexMerge() throws IOException, GitAPIException {
+        N2oGitCore gitCore = env.getGitCore();
+        Repository repo = gitCore.getRepository();
+        String serverBranchName = env.getServerBranchName();
+        String localPath = "test/merge.object.xml";
+        String sideLocalPath = "test/side.object.xml";
+        gitCore.getGit().branchCreate().setName("side").call();
+        int time = (int) (System.currentTimeMillis() / 1000);
+        ObjectId sideId = commitAt("side", time + 10, null,
+                localPath, "<object id=\"side\"/>", sideLocalPath, "<object/>");
+        commitAt(serverBranchName, time + 20, null, localPath, "<object id=\"server\"/>");
+        //первый файл отличается от обоих родителей слияния, второй взят из ветки side без изменений
+        ObjectId mergeId = commitAt(serverBranchName, time + 30, sideId,
+                localPath, "<object id=\"merged\"/>", sideLocalPath, "<object/>");
+        for (String path : Arrays.asList(localPath, sideLocalPath)) {
+            List<ObjectId> logIds = new ArrayList<>();
+            gitCore.getGit().log().add(mergeId).addPath(path).call().forEach(logIds::add);
+            assert logIds.equals(gitCore.retrievePathCommits(path));
+        }
+        //расходящееся слияние: изменение одной из веток отбрасывается и не попадает в историю файла
+        String droppedLocalPath = "test/dropped.object.xml";
+        String takenLocalPath = "test/taken.object.xml";
+        ObjectId sideChangeId = commitAt("side", time + 40, null,
+                droppedLocalPath, "<object id=\"side\"/>", takenLocalPath, "<object id=\"side\"/>");
+        ObjectId serverChangeId = commitAt(serverBranchName, time + 50, null,
+                droppedLocalPath, "<object id=\"server\"/>", takenLocalPath, "<object id=\"server\"/>");
+        //первый файл остается серверным, второй берется из ветки side
+        mergeId = commitAt(serverBranchName, time + 60, sideChangeId, takenLocalPath, "<object id=\"side\"/>");
+        for (String path : Arrays.asList(localPath, sideLocalPath, droppedLocalPath, takenLocalPath)) {
+            List<ObjectId> logIds = new ArrayList<>();
+            gitCore.getGit().log().add(mergeId).addPath(path).call().forEach(logIds::add);
+            assert logIds.equals(gitCore.retrievePathCommits(path));
+            //история по индексу совпадает с историей обхода с фильтром по пути
+            try (N2oGitHistoryWalk indexWalk = new N2oGitHistoryWalk(repo, path, logIds, gitCore.retrieveInitCommit());
+                 N2oGitHistoryWalk logWalk = new N2oGitHistoryWalk(repo, path, mergeId, gitCore.retrieveInitCommit())) {
+                assert retrieveHistoryIds(logWalk).equals(retrieveHistoryIds(indexWalk));
+            }
+        }
+        assert !gitCore.retrievePathCommits(droppedLocalPath).contains(sideChangeId);
+        assert !gitCore.retrievePathCommits(takenLocalPath).contains(serverChangeId);
+        assert gitCore.retrievePathCommits(takenLocalPath).contains(sideChangeId);
+        //незавершенная запись журнала отбрасывается при загрузке
+        File indexFile = new File(repo.getDirectory(), "n2o_path_index");
+        long length = indexFile.length();
+        try (Writer writer = new OutputStreamWriter(new FileOutputStream(indexFile, true), DEFAULT_FILE_ENCODING)) {
+            writer.write(ObjectId.zeroId().getName() + "\t" + (time + 70) + "\t" + mergeId.getName() + "\t" + localPath
+                    + "\nT\t" + mergeId.getName().substring(0, 10));
+        }
+        List<ObjectId> logIds = new ArrayList<>();
+        gitCore.getGit().log().add(mergeId).addPath(localPath).call().forEach(logIds::add);
+        assert logIds.equals(new N2oGitPathIndex(repo, indexFile).retrieveCommits(localPath, mergeId));
+        assert indexFile.length() == length;
+    }
+
+    @Test
+    public void testGraphEqualTime() throws IOException, GitAPIException {
+        N2oGitCore gitCore = env.getGitCore();
+        String serverBranchName = env.getServerBranchName();
+        ObjectId baseId = gitCore.getRepository().resolve(Constants.HEAD);
+        gitCore.getGit().branchCreate().setName("side").call();
+        //родители слияния и само слияние с одинаковым временем коммита, слияние не в текущей ветке
+        int time = (int) (System.currentTimeMillis() / 1000) + 10;
+        ObjectId sideId = commitAt("side", time, null, "test/side.object.xml", "<object/>");
+        ObjectId serverId = commitAt(serverBranchName, time, null, "test/server.object.xml", "<object/>");
+        ObjectId mergeId = commitAt("side", time, serverId, "test/server.object.xml", "<object/>");
+        List<N2oGitGraphCommit> commits = new N2oGitGraph(gitCore.getRepository()).retrieveCommits(0, Integer.MAX_VALUE);
+        List<String> ids = new ArrayList<>();
+        commits.forEach(commit -> ids.add(commit.getId()));
+        //потомки идут раньше родителей
+        for (N2oGitGraphCommit commit : commits) {
+            for (String parent : commit.getParents())
+                assert ids.indexOf(commit.getId()) < ids.indexOf(parent);
+        }
+        //линия второго родителя освобождается на общем предке
+        assert commits.get(ids.indexOf(mergeId.getName())).getLane() == 0;
+        assert commits.get(ids.indexOf(sideId.getName())).getLane() == 0;
+        assert commits.get(ids.indexOf(serverId.getName())).getLane() == 1;
+        assert commits.get(ids.indexOf(baseId.getName())).getLane() == 0;
+    }
+
+    @Test
+    public void testGraphClockSkew() throws IOException, GitAPIException {
+        N2oGitCore gitCore = env.getGitCore();
+        String serverBranchName = env.getServerBranchName();
+        ObjectId baseId = gitCore.getRepository().resolve(Constants.HEAD);
+        gitCore.getGit().branchCreate().setName("side").call();
+        //время коммита потомка меньше времени родителя, коммит другой ветки между ними по времени
+        int time = (int) (System.currentTimeMillis() / 1000) + 10;
+        ObjectId parentId = commitAt(serverBranchName, time + 100, null, "test/server.object.xml", "<object/>");
+        ObjectId childId = commitAt(serverBranchName, time + 50, null, "test/server.object.xml", "<object id=\"child\"/>");
+        ObjectId sideId = commitAt("side", time + 70, null, "test/side.object.xml", "<object/>");
+        List<N2oGitGraphCommit> commits = new N2oGitGraph(gitCore.getRepository()).retrieveCommits(0, Integer.MAX_VALUE);
+        List<String> ids = new ArrayList<>();
+        commits.forEach(commit -> ids.add(commit.getId()));
+        assert ids.contains(sideId.getName());
+        //потомки идут раньше родителей
+        for (N2oGitGraphCommit commit : commits) {
+            for (String parent : commit.getParents())
+                assert ids.indexOf(commit.getId()) < ids.indexOf(parent);
+        }
+        assert ids.indexOf(childId.getName()) < ids.indexOf(parentId.getName());
+        //коммиты одной ветки остаются на одной линии
+        int lane = commits.get(ids.indexOf(childId.getName())).getLane();
+        assert commits.get(ids.indexOf(parentId.getName())).getLane() == lane;
+        assert ids.indexOf(parentId.getName()) < ids.indexOf(baseId.getName());
+    }
+
+    private List<String> retrieveHistoryIds(N2oGitHistoryWalk historyWalk) throws IOException {
+        List<String> ids = new ArrayList<>();
+        historyWalk.readAll().forEach(history -> ids.add(history.getId()));
+        return ids;
+    }
+
+    /**
+     * Создает коммит с заданным временем и переводит на него ветку
+     */
+    private ObjectId commitAt(String branchName, int time, ObjectId mergeId, String... pathContents) throws IOException {
+        Repository repo = env.getGitCore().getRepository();
+        try (N2oGitTreeEditor editor = env.getGitCore().editBranch(branchName);
+             ObjectInserter inserter = repo.newObjectInserter()) {
+            for (int i = 0; i < pathContents.length; i += 2)
+                editor.put(pathContents[i], pathContents[i + 1].getBytes(DEFAULT_FILE_ENCODING));
+            PersonIdent personIdent = new PersonIdent("test_author", "test_author@n2oapp.net", time * 1000L, 0);
+            CommitBuilder commitBuilder = new CommitBuilder();
+            commitBuilder.setTreeId(editor.writeTree());
+            commitBuilder.addParentId(editor.getBaseCommitId());
+            if (mergeId != null)
+                commitBuilder.addParentId(mergeId);
+            commitBuilder.setAuthor(personIdent);
+            commitBuilder.setCommitter(personIdent);
+            commitBuilder.setMessage(UPDATED_PREFIX.value + pathContents[0]);
+            ObjectId commitId = inserter.insert(commitBuilder);
+            inserter.flush();
+            assert N2oGitTreeEditor.isUpdated(editor.updateRef(commitId, UPDATED_PREFIX.value + pathContents[0]));
+            return commitId;
+        }
+    }
+
     private String testAddUpdated() throws GitAPIException {
         N2oGitCore gitCore = env.getGitCore();
         assert gitCore.isClean();
@@ -107,13 +389,39 @@ public class N2oGitCoreTest {
         return mockLocalPath;
     }
 
+    private void testCommitOptimistic() throws IOException, GitAPIException {
+        N2oGitCore gitCore = env.getGitCore();
+        String mockLocalPath = "test/mock2.object.xml";
+        File mock = generateStorageFile(mockLocalPath);
+        InputStream inputStream = this.getClass().getClassLoader().getResourceAsStream(RESOURCE_PATH + "mock/mock.object.xml");
+        FileSystemUtil.saveContentToFile(inputStream, mock);
+        ObjectId headId = gitCore.getRepository().resolve(Constants.HEAD);
+        //ветку перевел другой коммит во время построения первой попытки
+        int[] attempts = {0};
+        ObjectId commitId = gitCore.commitOptimistic(env.getServerBranchName(), "test_author", editor -> {
+            if (attempts[0]++ == 0)
+                gitCore.commit(CREATED_PREFIX.value + "test/empty", "test_author");
+            editor.put(mockLocalPath, Files.readAllBytes(mock.toPath()));
+            return CREATED_PREFIX.value + mockLocalPath;
+        });
+        assert attempts[0] == 2;
+        assert commitId.equals(gitCore.getRepository().resolve(Constants.HEAD));
+        assert !headId.equals(gitCore.retrieveSnapshot()) && commitId.equals(gitCore.retrieveSnapshot());
+        assert gitCore.isClean();
+        assert gitCore.commitOptimistic(env.getServerBranchName(), "test_author", editor -> null) == null;
+    }
+
     private void testCheckout() throws IOException, GitAPIException {
         String serverBranchName = env.getServerBranchName();
         N2oGitCore gitCore = env.getGitCore();
         assert gitCore.isCurrentBranch(serverBranchName);
+        ObjectId snapshotId = gitCore.retrieveSnapshot();
+        assert snapshotId.equals(gitCore.getRepository().resolve(Constants.HEAD));
         String systemBranchName = env.getSystemBranchName();
         gitCore.doCheckout(systemBranchName);
         assert gitCore.isCurrentBranch(systemBranchName);
+        //снимок для чтения не зависит от текущей ветки
+        assert snapshotId.equals(gitCore.retrieveSnapshot());
         String testBranch = "test_branch";
         gitCore.doCheckout(testBranch, true);
         assert gitCore.isCurrentBranch(testBranch);
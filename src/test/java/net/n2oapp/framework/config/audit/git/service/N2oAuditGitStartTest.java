@@ -3,6 +3,7 @@ package net.n2oapp.framework.config.audit.git.service;
 import net.n2oapp.framework.api.N2oConfigStarterEvent;
 import net.n2oapp.framework.api.metadata.global.view.N2oPage;
 import net.n2oapp.framework.config.audit.git.core.N2oGitCore;
+import net.n2oapp.framework.config.audit.git.util.N2oGitConstant;
 import net.n2oapp.framework.config.audit.git.util.N2oGitFileUtil;
 import net.n2oapp.framework.config.audit.git.util.mock.N2oConfigAuditGitMock;
 import net.n2oapp.framework.config.audit.git.util.model.N2oGitTestEnv;
@@ -23,6 +24,7 @@ import org.springframework.test.context.junit4.SpringJUnit4ClassRunner;
 
 import java.io.File;
 import java.io.IOException;
+import java.util.Collections;
 import java.util.Iterator;
 
 import static net.n2oapp.framework.config.audit.git.util.N2oGitTestUtil.*;
@@ -56,6 +58,41 @@ public class N2oAuditGitStartTest {
         testHandle("modify");
     }
 
+    @Test
+    public void testHandleInCore() throws IOException, GitAPIException {
+        //обновление системной ветки без переключения рабочего каталога
+        N2oGitConstant.systemInCore = true;
+        try {
+            testHandle("modify");
+        } finally {
+            N2oGitConstant.systemInCore = false;
+        }
+    }
+
+    @Test
+    public void testHandleUpToDate() throws IOException, GitAPIException {
+        N2oConfigAuditGitMock configAuditGit = env.getConfigAuditGit();
+        N2oGit n2oGit = configAuditGit.getN2oGit();
+        String version = env.getTestProperties().getProperty("n2o.version");
+        addToConfReg("page/page1.page.xml", false);
+        String fingerprint = N2oGitFileUtil.calculateFingerprint(env.getConfReg().getAllInfoList());
+        assert !n2oGit.isSystemUpToDate(version, fingerprint);
+        configAuditGit.handle(new N2oConfigStarterEvent());
+        //рестарт без изменения системных файлов не обновляет системную ветку
+        assert n2oGit.isSystemUpToDate(version, fingerprint);
+        assert !n2oGit.isSystemUpToDate(version + "_new", fingerprint);
+        //новый системный файл меняет отпечаток
+        Info info2 = addToConfReg("page/page2.page.xml", false);
+        String newFingerprint = N2oGitFileUtil.calculateFingerprint(env.getConfReg().getAllInfoList());
+        assert !fingerprint.equals(newFingerprint);
+        assert !n2oGit.isSystemUpToDate(version, newFingerprint);
+        //источник, дату изменения которого определить нельзя, отключает пропуск обновления
+        Info vfsInfo = copyInfo(info2);
+        vfsInfo.setURI("vfs:/content/app.war/WEB-INF/classes/page/page2.page.xml");
+        assert N2oGitFileUtil.calculateFingerprint(Collections.singletonList(vfsInfo)) == null;
+        assert !n2oGit.isSystemUpToDate(version, null);
+    }
+
     public void testHandle(String storageMode) throws IOException, GitAPIException {
         env.getTestProperties().setProperty("n2o.config.audit.storage.mode", storageMode);
         N2oConfigAuditGitMock configAuditGit = env.getConfigAuditGit();
@@ -79,6 +116,8 @@ public class N2oAuditGitStartTest {
         Status status = git.status().call();
         if ("modify".equals(storageMode)) {
             assert status.getMissing().size() == 2;
+            //удаленные при очистке каталога системные файлы передаются на перерегистрацию
+            assert configAuditGit.getReRegisteredFiles().size() >= 2;
         } else if ("all".equals(storageMode)) {
             assert status.getMissing().size() == 0;
         } else {
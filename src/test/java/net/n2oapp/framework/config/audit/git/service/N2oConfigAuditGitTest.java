@@ -2,12 +2,18 @@ package net.n2oapp.framework.config.audit.git.service;
 
 import net.n2oapp.framework.api.N2oConfigStarterEvent;
 import net.n2oapp.framework.config.audit.git.core.N2oGitCore;
+import net.n2oapp.framework.config.audit.git.model.N2oGitChange;
+import net.n2oapp.framework.config.audit.git.model.N2oGitGraphCommit;
+import net.n2oapp.framework.config.audit.git.util.N2oGitConstant;
 import net.n2oapp.framework.config.audit.git.util.N2oGitFileUtil;
 import net.n2oapp.framework.config.audit.git.util.mock.N2oConfigAuditGitMock;
 import net.n2oapp.framework.config.audit.git.util.model.N2oGitTestEnv;
 import net.n2oapp.framework.config.register.Info;
+import net.n2oapp.framework.config.register.InfoStatus;
 import net.n2oapp.framework.config.register.audit.model.N2oConfigHistory;
+import org.apache.commons.io.FileUtils;
 import org.eclipse.jgit.api.errors.GitAPIException;
+import org.eclipse.jgit.dircache.DirCacheEntry;
 import org.eclipse.jgit.revwalk.RevCommit;
 import org.junit.After;
 import org.junit.Before;
@@ -16,10 +22,19 @@ import org.junit.runner.RunWith;
 import org.springframework.test.context.ContextConfiguration;
 import org.springframework.test.context.junit4.SpringJUnit4ClassRunner;
 
+import java.io.File;
 import java.io.IOException;
 import java.util.Iterator;
 import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Lock;
+import java.util.stream.Stream;
 
+import static net.n2oapp.framework.config.audit.git.util.N2oGitConstant.DEFAULT_FILE_ENCODING;
+import static net.n2oapp.framework.config.audit.git.util.N2oGitConstant.DEFAULT_LINE_END;
 import static net.n2oapp.framework.config.audit.git.util.N2oGitTestUtil.*;
 import static net.n2oapp.framework.config.audit.git.util.N2oGitUtil.resolveMergeMessage;
 import static net.n2oapp.framework.config.register.audit.model.N2oConfigMessage.*;
@@ -42,6 +57,120 @@ public class N2oConfigAuditGitTest {
     public void test() throws IOException, GitAPIException {
         testCRUD();
         testRetrieveHistory();
+        testHistoryCache();
+        testRetrieveGraph();
+    }
+
+    @Test
+    public void testAsyncCommit() throws IOException, GitAPIException {
+        N2oConfigAuditGitMock configAuditGit = env.getConfigAuditGit();
+        N2oGit n2oGit = configAuditGit.getN2oGit();
+        N2oGitCore gitCore = env.getGitCore();
+        configAuditGit.handle(new N2oConfigStarterEvent());
+        N2oGitCommitQueue commitQueue = new N2oGitCommitQueue(n2oGit, 10, 5000);
+        n2oGit.setCommitQueue(commitQueue);
+        try {
+            //создал два серверных файла, изменения попадают в один коммит
+            String localPath3 = "page/page3.page.xml";
+            String localPath4 = "page/page4.page.xml";
+            addToConfReg(localPath3, true);
+            addToConfReg(localPath4, true);
+            assert !gitCore.getGit().log().addPath(localPath3).call().iterator().hasNext();
+            assert commitQueue.flush(120000);
+            Iterator<RevCommit> iterator = gitCore.getGit().log().call().iterator();
+            assert iterator.hasNext();
+            RevCommit commit = iterator.next();
+            assert commit.getFullMessage().contains(localPath3);
+            assert commit.getFullMessage().contains(localPath4);
+            assert "admin".equals(commit.getAuthorIdent().getName());
+        } finally {
+            commitQueue.close();
+            n2oGit.setCommitQueue(null);
+        }
+    }
+
+    @Test
+    public void testAsyncCommitError() throws InterruptedException {
+        //ошибка коммита не останавливает поток записи
+        N2oGit n2oGit = new N2oGit() {
+            @Override
+            public void commit(String author, List<N2oGitChange> changes) {
+                throw new AssertionError(author);
+            }
+        };
+        N2oGitCommitQueue commitQueue = new N2oGitCommitQueue(n2oGit, 10, 0);
+        try {
+            commitQueue.submit(new N2oGitChange("page/page3.page.xml", "admin", InfoStatus.Status.SERVER));
+            assert commitQueue.flush(60000);
+            commitQueue.submit(new N2oGitChange("page/page4.page.xml", "admin", InfoStatus.Status.SERVER));
+            assert commitQueue.flush(60000);
+            assert commitQueue.isRunning();
+        } finally {
+            commitQueue.close();
+        }
+        assert !commitQueue.isRunning();
+    }
+
+    @Test
+    public void testOptimisticCommit() throws IOException, GitAPIException {
+        N2oGitConstant.optimisticCommit = true;
+        try {
+            N2oGitCore gitCore = env.getGitCore();
+            N2oGit n2oGit = env.getConfigAuditGit().getN2oGit();
+            String localPath = "page/page3.page.xml";
+            addToConfReg(localPath, true);
+            Iterator<RevCommit> iterator = gitCore.getGit().log().addPath(localPath).call().iterator();
+            assert iterator.hasNext();
+            assert (CREATED_PREFIX.value + localPath).equals(iterator.next().getShortMessage());
+            assert gitCore.getGit().status().addPath(localPath).call().isClean();
+            //размер и время изменения в git индексе - на момент чтения файла
+            File file = n2oGit.resolveAbsolutePath(localPath);
+            DirCacheEntry entry = gitCore.getRepository().readDirCache().getEntry(localPath);
+            assert entry.getLength() == file.length();
+            assert entry.getLastModified() == file.lastModified();
+            //изменение файла после коммита видно в статусе
+            FileUtils.writeStringToFile(file, "<page/>", DEFAULT_FILE_ENCODING);
+            assert file.setLastModified(entry.getLastModified() + 2000);
+            assert gitCore.getGit().status().addPath(localPath).call().getModified().contains(localPath);
+        } finally {
+            N2oGitConstant.optimisticCommit = false;
+        }
+    }
+
+    @Test
+    public void testReadDuringCommit() throws Exception {
+        N2oConfigAuditGitMock configAuditGit = env.getConfigAuditGit();
+        String localPath = "page/page1.page.xml";
+        addToConfReg(localPath, false);
+        configAuditGit.handle(new N2oConfigStarterEvent());
+        N2oGitFileUtil.createFile(resolveURI("page/page2.page.xml"), generateStorageFile(localPath));
+        Info info = addToConfReg(localPath, true, false);
+        int size = configAuditGit.retrieveHistory(localPath).size();
+        Lock writeLock = configAuditGit.getN2oGit().getWriteLock();
+        ExecutorService executor = Executors.newFixedThreadPool(2);
+        try {
+            Future<?> remove;
+            writeLock.lock();
+            try {
+                //удаление ждет блокировку записи, чтение истории по снимку не блокируется
+                assert info.getFile().delete();
+                remove = executor.submit(() -> env.getConfReg().remove(info.getConfigId()));
+                List<N2oConfigHistory> histories = executor.submit(() -> configAuditGit.retrieveHistory(localPath))
+                        .get(60, TimeUnit.SECONDS);
+                assert histories.size() == size;
+                assert !remove.isDone();
+            } finally {
+                writeLock.unlock();
+            }
+            remove.get(60, TimeUnit.SECONDS);
+        } finally {
+            executor.shutdownNow();
+        }
+        //восстановление файла и коммит выполнены в одной блокировке
+        List<N2oConfigHistory> histories = configAuditGit.retrieveHistory(localPath);
+        assert histories.size() == size + 1;
+        assert (RESTORED_PREFIX + localPath).equals(histories.get(0).getMessage());
+        assert compareContent(localPath, histories.get(0).getContent());
     }
 
     private void testCRUD() throws GitAPIException, IOException {
@@ -109,6 +238,69 @@ public class N2oConfigAuditGitTest {
         history = n2oConfigHistories.get(1);
         assert (CREATED_PREFIX + localPath).equals(history.getMessage());
         assert "".equals(history.getPreviousContent());
+        testRetrieveHistoryPage();
+    }
+
+    private void testRetrieveHistoryPage() {
+        String localPath = "page/page1.page.xml";
+        N2oConfigAuditGitMock configAuditGit = env.getConfigAuditGit();
+        List<N2oConfigHistory> all = configAuditGit.retrieveHistory(localPath);
+        //страница по смещению
+        List<N2oConfigHistory> page = configAuditGit.retrieveHistory(localPath, 1, 1);
+        assert page.size() == 1;
+        assert all.get(1).getId().equals(page.get(0).getId());
+        //страница после записи
+        page = configAuditGit.retrieveHistory(localPath, all.get(0).getCode(), 10);
+        assert page.size() == all.size() - 1;
+        assert all.get(1).getId().equals(page.get(0).getId());
+        //поток
+        try (Stream<N2oConfigHistory> stream = configAuditGit.streamHistory(localPath)) {
+            assert stream.limit(2).count() == 2;
+        }
+    }
+
+    private void testHistoryCache() throws IOException {
+        String localPath = "page/page1.page.xml";
+        N2oConfigAuditGitMock configAuditGit = env.getConfigAuditGit();
+        N2oGitHistoryCache historyCache = configAuditGit.getN2oGit().getHistoryCache();
+        int size = configAuditGit.retrieveHistory(localPath).size();
+        long hitCount = historyCache.getHitCount();
+        assert configAuditGit.retrieveHistory(localPath).size() == size;
+        assert historyCache.getHitCount() == hitCount + 1;
+        //записи из кэша читают разницу и содержимое из репозитория, а не через закрытый обход
+        N2oConfigHistory cached = configAuditGit.retrieveHistory(localPath).get(0);
+        assert cached.getDiff().contains(localPath);
+        assert cached.getContent().equals(configAuditGit.retrieveHistory(localPath).get(0).getContent());
+        //коммит другого файла не сбрасывает историю
+        addToConfReg("page/page4.page.xml", true);
+        assert configAuditGit.retrieveHistory(localPath).size() == size;
+        assert historyCache.getHitCount() == hitCount + 4;
+        //коммит файла сбрасывает его историю
+        long missCount = historyCache.getMissCount();
+        N2oGit n2oGit = configAuditGit.getN2oGit();
+        FileUtils.writeStringToFile(n2oGit.resolveAbsolutePath(localPath), "<page/>", DEFAULT_FILE_ENCODING);
+        n2oGit.commit(localPath, "admin", InfoStatus.Status.SERVER);
+        configAuditGit.retrieveHistory(localPath);
+        assert historyCache.getMissCount() == missCount + 1;
+    }
+
+    private void testRetrieveGraph() {
+        N2oConfigAuditGitMock configAuditGit = env.getConfigAuditGit();
+        String graph = configAuditGit.retrieveGraph();
+        assert graph.startsWith(DEFAULT_LINE_END + "*");
+        //окно из одного коммита - начало полного графа
+        StringBuilder window = new StringBuilder();
+        configAuditGit.retrieveGraph(window, 1, null);
+        assert window.length() > 0;
+        assert graph.startsWith(window.toString());
+        assert window.indexOf(DEFAULT_LINE_END + "* ", 1) < 0;
+        //повторное построение из кэша
+        assert graph.equals(configAuditGit.retrieveGraph());
+        //модель графа постранично
+        List<N2oGitGraphCommit> commits = configAuditGit.retrieveGraphCommits(0, 2);
+        assert commits.size() == 2;
+        assert commits.get(0).getLane() == 0;
+        assert commits.get(1).getId().equals(configAuditGit.retrieveGraphCommits(1, 1).get(0).getId());
     }
 
     @After
@@ -2,6 +2,10 @@ package net.n2oapp.framework.config.audit.git.service.conflict;
 
 import net.n2oapp.framework.api.N2oConfigStarterEvent;
 import net.n2oapp.framework.config.audit.git.core.N2oGitCore;
+import net.n2oapp.framework.config.audit.git.core.N2oGitTreeEditor;
+import net.n2oapp.framework.config.audit.git.model.N2oGitOpenConflict;
+import net.n2oapp.framework.config.audit.git.service.N2oGitConflictRegistry;
+import net.n2oapp.framework.config.audit.git.util.N2oGitConstant;
 import net.n2oapp.framework.config.audit.git.util.N2oGitFileUtil;
 import net.n2oapp.framework.config.audit.git.util.mock.N2oConfigAuditGitMock;
 import net.n2oapp.framework.config.audit.git.util.model.N2oGitTestEnv;
@@ -11,7 +15,13 @@ import net.n2oapp.framework.config.register.audit.model.N2oConfigConflict;
 import net.n2oapp.framework.config.register.audit.model.N2oConfigMessage;
 import org.eclipse.jgit.api.Git;
 import org.eclipse.jgit.api.errors.GitAPIException;
+import org.eclipse.jgit.lib.CommitBuilder;
+import org.eclipse.jgit.lib.ObjectId;
+import org.eclipse.jgit.lib.ObjectInserter;
+import org.eclipse.jgit.lib.PersonIdent;
+import org.eclipse.jgit.lib.Repository;
 import org.eclipse.jgit.revwalk.RevCommit;
+import org.eclipse.jgit.revwalk.RevWalk;
 import org.junit.After;
 import org.junit.Before;
 import org.junit.Test;
@@ -22,7 +32,9 @@ import org.springframework.test.context.junit4.SpringJUnit4ClassRunner;
 import java.io.File;
 import java.io.IOException;
 import java.util.Iterator;
+import java.util.List;
 
+import static net.n2oapp.framework.config.audit.git.util.N2oGitConstant.DEFAULT_FILE_ENCODING;
 import static net.n2oapp.framework.config.audit.git.util.N2oGitTestUtil.*;
 
 /**
@@ -43,6 +55,66 @@ public class N2oGitConflictManualTest {
 
     @Test
     public void test() throws IOException, GitAPIException {
+        testManual();
+    }
+
+    @Test
+    public void testInCore() throws IOException, GitAPIException {
+        //слияние в памяти дает тот же результат, что и слияние в рабочем каталоге
+        N2oGitConstant.mergeInCore = true;
+        try {
+            testManual();
+        } finally {
+            N2oGitConstant.mergeInCore = false;
+        }
+    }
+
+    @Test
+    public void testPathIndexDisabled() throws IOException, GitAPIException {
+        //без индекса изменений конфликт ищется обходом всех веток
+        boolean pathIndexEnabled = N2oGitConstant.pathIndexEnabled;
+        N2oGitConstant.pathIndexEnabled = false;
+        try {
+            testManual();
+        } finally {
+            N2oGitConstant.pathIndexEnabled = pathIndexEnabled;
+        }
+    }
+
+    @Test
+    public void testSystemNotMerged() throws IOException, GitAPIException {
+        testManual();
+        String localPath = "page/page1.page.xml";
+        N2oConfigAuditGitMock configAuditGit = env.getConfigAuditGit();
+        N2oGitCore gitCore = env.getGitCore();
+        String conflictId = configAuditGit.retrieveConflict(localPath).getId();
+        //коммит системной ветки, не слитый в серверную
+        Repository repo = gitCore.getRepository();
+        try (N2oGitTreeEditor editor = gitCore.editBranch(env.getSystemBranchName());
+             ObjectInserter inserter = repo.newObjectInserter()) {
+            editor.put("page/system.page.xml", "<page/>".getBytes(DEFAULT_FILE_ENCODING));
+            PersonIdent personIdent = new PersonIdent("test_author", "test_author@n2oapp.net");
+            CommitBuilder commitBuilder = new CommitBuilder();
+            commitBuilder.setTreeId(editor.writeTree());
+            commitBuilder.addParentId(editor.getBaseCommitId());
+            commitBuilder.setAuthor(personIdent);
+            commitBuilder.setCommitter(personIdent);
+            commitBuilder.setMessage("system");
+            ObjectId commitId = inserter.insert(commitBuilder);
+            inserter.flush();
+            assert N2oGitTreeEditor.isUpdated(editor.updateRef(commitId, "system"));
+        }
+        try (RevWalk revWalk = new RevWalk(repo)) {
+            assert !revWalk.isMergedInto(revWalk.parseCommit(repo.resolve(env.getSystemBranchName())),
+                    revWalk.parseCommit(repo.resolve(env.getServerBranchName())));
+        }
+        //конфликт ищется обходом всех веток, так как индекс серверной ветки не покрывает системную
+        N2oConfigConflict configConflict = configAuditGit.retrieveConflict(localPath);
+        assert conflictId.equals(configConflict.getId());
+        assert compareContent("page/pageConflict.page.xml", configConflict.getConflictContent());
+    }
+
+    private void testManual() throws IOException, GitAPIException {
         env.getTestProperties().setProperty("n2o.config.audit.conflict.mode", "manual");
         N2oConfigAuditGitMock configAuditGit = env.getConfigAuditGit();
         String serverBranchName = env.getServerBranchName();
@@ -78,6 +150,23 @@ public class N2oGitConflictManualTest {
         assert compareContent("page/page2.page.xml", configConflict.getContent());
         assert compareContent("page/page3.page.xml", configConflict.getMergeContent());
         assert compareContent("page/pageConflict.page.xml", configConflict.getConflictContent());
+        //конфликт занесен в реестр
+        List<N2oGitOpenConflict> openConflicts = configAuditGit.retrieveOpenConflicts();
+        assert openConflicts.size() == 1;
+        assert localPath.equals(openConflicts.get(0).getLocalPath());
+        assert openConflicts.get(0).getCount() == 1;
+        assert openConflicts.get(0).getMergeCommitId() != null;
+        //в реестре, построенном по содержимому ветки, коммит слияния неизвестен
+        File registryFile = new File(gitCore.getRepository().getDirectory(), "n2o_conflict_scan");
+        openConflicts = new N2oGitConflictRegistry(gitCore.getRepository(), registryFile, serverBranchName).list();
+        assert openConflicts.size() == 1 && localPath.equals(openConflicts.get(0).getLocalPath());
+        assert openConflicts.get(0).getMergeCommitId() == null;
+        openConflicts = new N2oGitConflictRegistry(gitCore.getRepository(), registryFile, serverBranchName).list();
+        assert openConflicts.size() == 1 && openConflicts.get(0).getMergeCommitId() == null;
+        //реестр записывается через временный файл, который не остается в каталоге .git
+        assert registryFile.exists();
+        File[] tempFiles = gitCore.getRepository().getDirectory().listFiles((dir, name) -> name.endsWith(".tmp"));
+        assert tempFiles != null && tempFiles.length == 0;
     }
 
     @After
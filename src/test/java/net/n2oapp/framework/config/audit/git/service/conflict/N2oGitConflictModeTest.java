@@ -2,6 +2,7 @@ package net.n2oapp.framework.config.audit.git.service.conflict;
 
 import net.n2oapp.framework.api.N2oConfigStarterEvent;
 import net.n2oapp.framework.config.audit.git.core.N2oGitCore;
+import net.n2oapp.framework.config.audit.git.util.N2oGitConstant;
 import net.n2oapp.framework.config.audit.git.util.N2oGitFileUtil;
 import net.n2oapp.framework.config.audit.git.util.mock.N2oConfigAuditGitMock;
 import net.n2oapp.framework.config.audit.git.util.model.N2oGitTestEnv;
@@ -50,6 +51,18 @@ public class N2oGitConflictModeTest {
         testConflictMode("theirs");
     }
 
+    @Test
+    public void testInCore() throws IOException, GitAPIException {
+        //слияние в памяти, рабочий каталог обновляется только по измененным файлам
+        N2oGitConstant.mergeInCore = true;
+        try {
+            testConflictMode("ours");
+            testConflictMode("theirs");
+        } finally {
+            N2oGitConstant.mergeInCore = false;
+        }
+    }
+
     private void testConflictMode(String mode) throws IOException, GitAPIException {
         env.getTestProperties().setProperty("n2o.config.audit.conflict.mode", mode);
         N2oConfigAuditGitMock configAuditGit = env.getConfigAuditGit();
@@ -0,0 +1,89 @@
+package net.n2oapp.framework.config.audit.git.util;
+
+import net.n2oapp.framework.config.register.audit.util.N2oConfigConflictParser;
+import net.n2oapp.framework.config.util.FileSystemUtil;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.springframework.test.context.ContextConfiguration;
+import org.springframework.test.context.junit4.SpringJUnit4ClassRunner;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+
+import static net.n2oapp.framework.config.audit.git.util.N2oGitConstant.DEFAULT_FILE_ENCODING;
+import static net.n2oapp.framework.config.audit.git.util.N2oGitTestUtil.compareContent;
+import static net.n2oapp.framework.config.audit.git.util.N2oGitTestUtil.resolveURI;
+
+/**
+ * Тест потокового разбора меток конфликтов
+ */
+@RunWith(SpringJUnit4ClassRunner.class)
+@ContextConfiguration("/config-audit-git-context.xml")
+public class N2oGitConflictScannerTest {
+    private static final int[] SIZES = {1024, 64 * 1024, 1024 * 1024, 5 * 1024 * 1024};
+
+    @Test
+    public void testScan() throws IOException {
+        byte[] content = FileSystemUtil.getContentByUri(resolveURI("page/pageConflict.page.xml")).getBytes(DEFAULT_FILE_ENCODING);
+        ByteArrayOutputStream ours = new ByteArrayOutputStream();
+        ByteArrayOutputStream theirs = new ByteArrayOutputStream();
+        assert N2oGitConflictScanner.scan(new ByteArrayInputStream(content), ours, theirs) == 1;
+        assert compareContent("page/page2.page.xml", ours.toString(DEFAULT_FILE_ENCODING));
+        assert compareContent("page/page3.page.xml", theirs.toString(DEFAULT_FILE_ENCODING));
+        //метки, разбитые между частями содержимого
+        ByteArrayOutputStream chunkedOurs = new ByteArrayOutputStream();
+        N2oGitConflictScanner scanner = new N2oGitConflictScanner(chunkedOurs, null);
+        for (int i = 0; i < content.length; i += 3)
+            scanner.update(content, i, Math.min(3, content.length - i));
+        assert scanner.finish() == 1;
+        assert ours.toString(DEFAULT_FILE_ENCODING).equals(chunkedOurs.toString(DEFAULT_FILE_ENCODING));
+    }
+
+    @Test
+    public void testScanMarkers() throws IOException {
+        assert count("a\n<<<<<<< HEAD\nb\n=======\nc\n>>>>>>> system\nd\n") == 1;
+        assert count("<<<<<<< HEAD\r\nb\r\n=======\r\nc\r\n>>>>>>> system\r\n<<<<<<< HEAD\r\n=======\r\n>>>>>>> system") == 2;
+        //метки не в начале строки, неполные метки и метки вне порядка не учитываются
+        assert count(" <<<<<<< HEAD\n<<<<<<<<\n<<<<<< HEAD\n=======\n>>>>>>> system\n") == 0;
+        ByteArrayOutputStream ours = new ByteArrayOutputStream();
+        ByteArrayOutputStream theirs = new ByteArrayOutputStream();
+        N2oGitConflictScanner.scan(stream("a\n<<<<<<< HEAD\nb\n=======\nc\n>>>>>>> system\nd"), ours, theirs);
+        assert "a\nb\nd".equals(ours.toString(DEFAULT_FILE_ENCODING));
+        assert "a\nc\nd".equals(theirs.toString(DEFAULT_FILE_ENCODING));
+    }
+
+    /**
+     * Сравнение с разбором строки через {@link N2oConfigConflictParser} на файлах от 1 Кб до 5 Мб
+     */
+    @Test
+    public void testCompareWithParser() throws IOException {
+        for (int size : SIZES) {
+            byte[] content = generate(size);
+            int expected = N2oConfigConflictParser.countConflict(new String(content, DEFAULT_FILE_ENCODING));
+            assert N2oGitConflictScanner.countConflict(new ByteArrayInputStream(content)) == expected;
+        }
+    }
+
+    private static byte[] generate(int size) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream(size + 256);
+        int line = 0;
+        while (out.size() < size) {
+            if (line % 100 == 50)
+                out.write("<<<<<<< HEAD\n    <name>test2</name>\n=======\n    <name>test3</name>\n>>>>>>> refs/heads/system\n"
+                        .getBytes(DEFAULT_FILE_ENCODING));
+            else
+                out.write(("    <wgt:column column-field-id=\"field" + line + "\"/>\n").getBytes(DEFAULT_FILE_ENCODING));
+            line++;
+        }
+        return out.toByteArray();
+    }
+
+    private static int count(String content) throws IOException {
+        return N2oGitConflictScanner.countConflict(stream(content));
+    }
+
+    private static ByteArrayInputStream stream(String content) throws IOException {
+        return new ByteArrayInputStream(content.getBytes(DEFAULT_FILE_ENCODING));
+    }
+}
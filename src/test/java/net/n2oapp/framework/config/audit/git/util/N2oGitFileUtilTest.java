@@ -0,0 +1,166 @@
+package net.n2oapp.framework.config.audit.git.util;
+
+import net.n2oapp.framework.api.metadata.global.view.N2oPage;
+import net.n2oapp.framework.config.register.Info;
+import org.apache.commons.io.FileUtils;
+import org.apache.commons.io.IOUtils;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.junit.runner.RunWith;
+import org.springframework.test.context.ContextConfiguration;
+import org.springframework.test.context.junit4.SpringJUnit4ClassRunner;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.util.*;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipOutputStream;
+
+import static net.n2oapp.framework.config.audit.git.util.N2oGitConstant.DEFAULT_FILE_ENCODING;
+
+/**
+ * Тест чтения, записи и очистки файлов каталога конфигураций
+ */
+@RunWith(SpringJUnit4ClassRunner.class)
+@ContextConfiguration("/config-audit-git-context.xml")
+public class N2oGitFileUtilTest {
+    private static final String IGNORES = ".git,.n2o_git_stash";
+
+    @Rule
+    public TemporaryFolder tempFolder = new TemporaryFolder();
+
+    @Test
+    public void testDeleteAllFiles() throws IOException {
+        testDeleteAllFiles(false);
+        testDeleteAllFiles(true);
+    }
+
+    private void testDeleteAllFiles(boolean parallel) throws IOException {
+        File root = tempFolder.newFolder("conf_" + parallel);
+        File modify = createFile(root, "page/modify.page.xml");
+        File system = createFile(root, "page/system.page.xml");
+        File nested = createFile(root, "page/sub/dir/system.page.xml");
+        File ignored = createFile(root, ".git/config");
+        Set<File> excludingFiles = new HashSet<>();
+        excludingFiles.add(modify);
+        N2oGitFileUtil.deleteAllFiles(root, excludingFiles, IGNORES, parallel);
+        assert root.exists();
+        assert modify.exists();
+        assert !system.exists();
+        assert !nested.exists();
+        assert !new File(root, "page/sub").exists();
+        assert ignored.exists();
+    }
+
+    @Test
+    public void testWriteFile() throws IOException {
+        File file = new File(tempFolder.getRoot(), "write/page/page.page.xml");
+        assert N2oGitFileUtil.writeFile(stream("<page>1</page>"), file);
+        assert "<page>1</page>".equals(FileUtils.readFileToString(file, DEFAULT_FILE_ENCODING));
+        //те же байты не перезаписываются
+        long lastModified = file.lastModified();
+        assert !N2oGitFileUtil.writeFile(stream("<page>1</page>"), file);
+        assert lastModified == file.lastModified();
+        //отличие в середине файла
+        assert N2oGitFileUtil.writeFile(stream("<page>2</page>"), file);
+        assert "<page>2</page>".equals(FileUtils.readFileToString(file, DEFAULT_FILE_ENCODING));
+        //новое содержимое короче текущего
+        assert N2oGitFileUtil.writeFile(stream("<page>"), file);
+        assert "<page>".equals(FileUtils.readFileToString(file, DEFAULT_FILE_ENCODING));
+        assert file.getParentFile().list().length == 1;
+    }
+
+    @Test
+    public void testReadContents() throws IOException {
+        File jar1 = createJar("lib1.jar", "page/a.page.xml", "<a>1</a>", "page/b.page.xml", "<b>1</b>");
+        File jar2 = createJar("lib2.jar", "page/a.page.xml", "<a>2</a>", "page/c.page.xml", "<c>2</c>");
+        File file = new File(tempFolder.getRoot(), "classes/page/d.page.xml");
+        FileUtils.writeStringToFile(file, "<d/>", DEFAULT_FILE_ENCODING);
+        List<Info> infos = Arrays.asList(jarInfo(jar1, "page/a.page.xml"), jarInfo(jar1, "page/b.page.xml"),
+                jarInfo(jar2, "page/a.page.xml"), jarInfo(jar2, "page/c.page.xml"),
+                info("page/d.page.xml", file.toURI().toString()));
+        for (int threads : new int[]{1, 4}) {
+            Map<String, String> contents = new HashMap<>();
+            N2oGitFileUtil.readContents(infos, threads, (info, content, length) -> {
+                byte[] bytes = IOUtils.toByteArray(content);
+                assert length == -1 || length == bytes.length;
+                assert contents.put(info.getLocalPath(), new String(bytes, DEFAULT_FILE_ENCODING)) == null;
+            });
+            assert contents.size() == 4;
+            //файл с тем же локальным путем берется из последнего jar, независимо от порядка чтения
+            assert "<a>2</a>".equals(contents.get("page/a.page.xml"));
+            assert "<b>1</b>".equals(contents.get("page/b.page.xml"));
+            assert "<c>2</c>".equals(contents.get("page/c.page.xml"));
+            assert "<d/>".equals(contents.get("page/d.page.xml"));
+        }
+    }
+
+    private File createJar(String name, String... entries) throws IOException {
+        File jar = new File(tempFolder.getRoot(), name);
+        try (OutputStream out = Files.newOutputStream(jar.toPath()); ZipOutputStream zip = new ZipOutputStream(out)) {
+            for (int i = 0; i < entries.length; i += 2) {
+                zip.putNextEntry(new ZipEntry(entries[i]));
+                zip.write(entries[i + 1].getBytes(DEFAULT_FILE_ENCODING));
+                zip.closeEntry();
+            }
+        }
+        return jar;
+    }
+
+    private Info jarInfo(File jar, String localPath) {
+        return info(localPath, "jar:" + jar.toURI() + "!/" + localPath);
+    }
+
+    private Info info(String localPath, String uri) {
+        Info info = new Info(localPath, N2oPage.class);
+        info.setLocalPath(localPath);
+        info.setURI(uri);
+        return info;
+    }
+
+    private InputStream stream(String content) throws IOException {
+        return new ByteArrayInputStream(content.getBytes(DEFAULT_FILE_ENCODING));
+    }
+
+    @Test
+    public void testDeleteAllFilesCount() throws IOException {
+        testDeleteAllFilesCount(false);
+        testDeleteAllFilesCount(true);
+    }
+
+    private void testDeleteAllFilesCount(boolean parallel) throws IOException {
+        File root = tempFolder.newFolder("count_" + parallel);
+        Set<File> excludingFiles = new HashSet<>();
+        Set<File> otherFiles = new HashSet<>();
+        for (int i = 0; i < 2000; i++) {
+            File file = createFile(root, "page" + (i % 50) + "/page" + i + ".page.xml");
+            if (i < 20)
+                excludingFiles.add(file);
+            else
+                otherFiles.add(N2oGitFileUtil.normalize(file));
+        }
+        Set<File> deletedFiles = N2oGitFileUtil.deleteAllFiles(root, excludingFiles, IGNORES, parallel);
+        //каждый файл удален ровно один раз
+        assert deletedFiles.equals(otherFiles);
+        for (File file : excludingFiles)
+            assert file.exists();
+        for (File file : otherFiles)
+            assert !file.exists();
+        //остаются только каталоги с исключенными файлами
+        assert root.list().length == 20;
+        //повторный вызов ничего не удаляет
+        assert N2oGitFileUtil.deleteAllFiles(root, excludingFiles, IGNORES, parallel).isEmpty();
+    }
+
+    private File createFile(File root, String localPath) throws IOException {
+        File file = new File(root, localPath);
+        file.getParentFile().mkdirs();
+        assert file.createNewFile();
+        return file;
+    }
+}
@@ -3,16 +3,33 @@ package net.n2oapp.framework.config.audit.git.util.mock;
 import net.n2oapp.framework.config.audit.git.service.N2oConfigAuditGit;
 import net.n2oapp.framework.config.register.ConfigRegister;
 
+import java.io.File;
+import java.util.HashSet;
+import java.util.Set;
+
 /**
  * @author dfirstov
  * @since 18.09.2015
  */
 public class N2oConfigAuditGitMock extends N2oConfigAuditGit {
+    private Set<File> reRegisteredFiles = new HashSet<>();
 
     @Override
     public void reRegistering() {
     }
 
+    /**
+     * Перерегистрация не выполняется, удаленные при очистке каталога файлы запоминаются
+     */
+    @Override
+    public void reRegistering(Set<File> deletedFiles) {
+        reRegisteredFiles.addAll(deletedFiles);
+    }
+
+    public Set<File> getReRegisteredFiles() {
+        return reRegisteredFiles;
+    }
+
     public void setConfReg(ConfigRegister confReg) {
         this.confReg = confReg;
     }